@@ -0,0 +1,70 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Font;
+import com.lowagie.text.pdf.BaseFont;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Font size fitting of one line: point by point loop with a new Font per step (as it was done before)
+ * against the closed form with cached fonts and widths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FontMetricsBenchmark {
+
+    private static final String DISCLAIMER = "This document is confidential and intended solely for the use of the individual to whom it is addressed";
+    private static final int FONT_SIZE = 40;
+
+    /**
+     * Length available to the line, from a narrow page to a diagonal of A3
+     */
+    @Param({"400", "842", "2048"})
+    public double length;
+
+    private FontMetrics fontMetrics;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fontMetrics = new FontMetrics();
+    }
+
+    @Benchmark
+    public Font fitLoop() {
+        Font defaultFont = new Font(Font.HELVETICA, FONT_SIZE, Font.BOLD, Color.LIGHT_GRAY);
+        BaseFont baseFont = defaultFont.getCalculatedBaseFont(false);
+        float width = baseFont.getWidthPoint(DISCLAIMER, FONT_SIZE);
+        Font font = defaultFont;
+        int dec = 0;
+        while (length <= width) {
+            dec++;
+            font = new Font(Font.HELVETICA, FONT_SIZE - dec, Font.BOLD, Color.LIGHT_GRAY);
+            width = baseFont.getWidthPoint(DISCLAIMER, font.getSize());
+        }
+        return font;
+    }
+
+    @Benchmark
+    public Font fitClosedForm() {
+        BaseFont baseFont = fontMetrics.getBaseFont(Font.HELVETICA, Font.BOLD);
+        int size = FontMetrics.fitFontSize(fontMetrics.getUnitWidth(baseFont, DISCLAIMER), length, FONT_SIZE);
+        return fontMetrics.getFont(Font.HELVETICA, size, Font.BOLD, Color.LIGHT_GRAY);
+    }
+}
@@ -0,0 +1,75 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.PageSize;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Layout steps on their own: font fitting of the lines (setPhrases) and placement (setCalculatedVariables)
+ * for one page geometry, without any PDF parsing or writing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LayoutBenchmark {
+
+    @Param({"DIAGONAL", "TOP", "BOTTOM", "LEFT_TOP", "LEFT_BOTTOM", "RIGHT_TOP", "RIGHT_BOTTOM", "TILED"})
+    public PdfWatermarkSettings.WatermarkPosition position;
+
+    @Param({"1", "3", "10"})
+    public int lines;
+
+    private PdfWatermarkServiceImpl service;
+    private WatermarkTemplate template;
+    private PageGeometry geometry;
+    private InternalWatermarkVariables withPhrases;
+
+    @Setup(Level.Trial)
+    public void setUp() throws PdfException {
+        service = new PdfWatermarkServiceImpl();
+        PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+        settings.setWatermarkPosition(position);
+        template = service.compile(StampBenchmark.lines(lines), settings);
+        geometry = new PageGeometry(PageSize.A4.getWidth(), PageSize.A4.getHeight(), 0, position);
+        withPhrases = newVariables();
+        service.setPhrases(withPhrases, template);
+    }
+
+    private InternalWatermarkVariables newVariables() {
+        InternalWatermarkVariables variables = new InternalWatermarkVariables();
+        service.setDefaultWidthAndHeightFromPage(geometry, variables);
+        service.setPageDiagonalLength(variables, position);
+        return variables;
+    }
+
+    @Benchmark
+    public InternalWatermarkVariables setPhrases() {
+        InternalWatermarkVariables variables = newVariables();
+        service.setPhrases(variables, template);
+        return variables;
+    }
+
+    @Benchmark
+    public InternalWatermarkVariables setCalculatedVariables() throws PdfException {
+        // setCalculatedVariables changes the page size of the variables, it works on a copy with the same phrases
+        InternalWatermarkVariables variables = newVariables();
+        variables.getPhrases().addAll(withPhrases.getPhrases());
+        service.setCalculatedVariables(variables, template.settings());
+        return variables;
+    }
+}
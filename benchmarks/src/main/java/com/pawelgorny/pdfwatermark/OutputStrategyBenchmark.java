@@ -0,0 +1,75 @@
+package com.pawelgorny.pdfwatermark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency against output size of the output strategies, for documents already stamped several times.
+ * The {@code outputBytes} counter is the size of the last stamped document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutputStrategyBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int pages;
+
+    @Param({"0", "3", "10"})
+    public int previousStamps;
+
+    @Param({"APPEND", "REWRITE", "AUTO"})
+    public PdfWatermarkSettings.OutputStrategy strategy;
+
+    private PDFWatermarkService service;
+    private byte[] document;
+    private List<String> watermarkLines;
+    private PdfWatermarkSettings settings;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class OutputSize {
+        public long outputBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        service = new PdfWatermarkServiceImpl();
+        watermarkLines = StampBenchmark.lines(3);
+        document = SyntheticDocuments.generate(pages, true);
+        PdfWatermarkSettings append = new PdfWatermarkSettings(true);
+        for (int i = 0; i < previousStamps; i++) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(document.length + 65536);
+            service.stamp(new ByteArrayInputStream(document), output, watermarkLines, append);
+            document = output.toByteArray();
+        }
+        settings = new PdfWatermarkSettings(true);
+        settings.setOutputStrategy(strategy);
+    }
+
+    @Benchmark
+    public void stamp(OutputSize outputSize) throws PdfException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(document.length + 65536);
+        service.stamp(new ByteArrayInputStream(document), output, watermarkLines, settings);
+        outputSize.outputBytes = output.size();
+    }
+}
@@ -0,0 +1,84 @@
+package com.pawelgorny.pdfwatermark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full stamp of synthetic documents through the public API, for every position, layer, number of lines and first page only.
+ * Run with {@code -prof gc} to get the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StampBenchmark {
+
+    @Param({"1", "10", "100", "1000", "5000"})
+    public int pages;
+
+    @Param({"true"})
+    public boolean mixedPages;
+
+    @Param({"DIAGONAL", "TOP", "BOTTOM", "LEFT_TOP", "LEFT_BOTTOM", "RIGHT_TOP", "RIGHT_BOTTOM", "TILED"})
+    public PdfWatermarkSettings.WatermarkPosition position;
+
+    @Param({"OVER", "UNDER"})
+    public PdfWatermarkSettings.Layer layer;
+
+    @Param({"1", "3", "10"})
+    public int lines;
+
+    @Param({"false", "true"})
+    public boolean firstPageOnly;
+
+    private PDFWatermarkService service;
+    private byte[] document;
+    private List<String> watermarkLines;
+    private PdfWatermarkSettings settings;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        service = new PdfWatermarkServiceImpl();
+        document = SyntheticDocuments.generate(pages, mixedPages);
+        watermarkLines = lines(lines);
+        settings = new PdfWatermarkSettings(true);
+        settings.setWatermarkPosition(position);
+        settings.setLayer(layer);
+        settings.setFirstPageOnly(firstPageOnly);
+    }
+
+    static List<String> lines(int count) {
+        List<String> lines = new ArrayList<>(count);
+        lines.add("CONFIDENTIAL");
+        for (int i = 1; i < count; i++) {
+            lines.add("user" + i + "@example.com 2020-01-01T10:00:00+01:00");
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public void stamp(Blackhole blackhole) throws PdfException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(document.length + 65536);
+        service.stamp(new ByteArrayInputStream(document), output, watermarkLines, settings);
+        blackhole.consume(output.size());
+    }
+}
@@ -0,0 +1,67 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.Paragraph;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.PageSize;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfNumber;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Generates in memory documents used by the benchmarks: pages of mixed sizes, orientations and rotations
+ */
+final class SyntheticDocuments {
+
+    private static final Rectangle[] PAGE_SIZES = {PageSize.A4, PageSize.LETTER, PageSize.A4.rotate(), PageSize.A3};
+    private static final int[] ROTATIONS = {0, 90, 0, 180, 270};
+
+    private SyntheticDocuments() {
+    }
+
+    /**
+     * @param pages     number of pages
+     * @param mixed     true for pages of mixed sizes and rotations, false for A4 portrait pages only
+     * @return the PDF file
+     */
+    static byte[] generate(int pages, boolean mixed) throws DocumentException, IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Document document = new Document(PageSize.A4);
+        PdfWriter.getInstance(document, output);
+        document.open();
+        for (int page = 1; page <= pages; page++) {
+            if (page > 1) {
+                if (mixed) {
+                    document.setPageSize(PAGE_SIZES[page % PAGE_SIZES.length]);
+                }
+                document.newPage();
+            }
+            document.add(new Paragraph("Synthetic page " + page + " of " + pages));
+        }
+        document.close();
+        return mixed ? rotate(output.toByteArray()) : output.toByteArray();
+    }
+
+    /**
+     * Sets the /Rotate entry of the pages
+     */
+    private static byte[] rotate(byte[] pdf) throws DocumentException, IOException {
+        PdfReader reader = new PdfReader(pdf);
+        for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+            int rotation = ROTATIONS[page % ROTATIONS.length];
+            if (rotation != 0) {
+                reader.getPageN(page).put(PdfName.ROTATE, new PdfNumber(rotation));
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(pdf.length);
+        new PdfStamper(reader, output).close();
+        reader.close();
+        return output.toByteArray();
+    }
+}
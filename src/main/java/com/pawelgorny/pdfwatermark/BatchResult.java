@@ -0,0 +1,70 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of all the jobs of a batch, in the order of submission, and the throughput of the batch
+ */
+public final class BatchResult {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final List<WatermarkJobResult> results;
+    private final long elapsedNanos;
+    private final int succeeded;
+    private final long pages;
+
+    BatchResult(List<WatermarkJobResult> results, long elapsedNanos) {
+        this.results = Collections.unmodifiableList(new ArrayList<>(results));
+        this.elapsedNanos = elapsedNanos;
+        int ok = 0;
+        long pageCount = 0;
+        for (WatermarkJobResult result : results) {
+            if (result.isSuccessful()) {
+                ok++;
+                pageCount += result.getPages();
+            }
+        }
+        this.succeeded = ok;
+        this.pages = pageCount;
+    }
+
+    public List<WatermarkJobResult> getResults() {
+        return results;
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public int getFailed() {
+        return results.size() - succeeded;
+    }
+
+    /**
+     * @return number of pages stamped by the successful jobs
+     */
+    public long getPages() {
+        return pages;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getDocumentsPerSecond() {
+        return elapsedNanos == 0 ? 0 : results.size() * NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    public double getPagesPerSecond() {
+        return elapsedNanos == 0 ? 0 : pages * NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d documents (%d failed), %d pages in %.3f s: %.1f docs/s, %.1f pages/s",
+                results.size(), getFailed(), pages, elapsedNanos / NANOS_PER_SECOND, getDocumentsPerSecond(), getPagesPerSecond());
+    }
+}
@@ -0,0 +1,250 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Cold, single-subscriber publisher of a watermarked PDF file. The production is started when the subscriber subscribes;
+ * the producing thread publishes the buffers only as far as the subscriber requested them and waits for more demand
+ * otherwise, so the output is never collected in memory. A cancelled subscription makes the next write fail,
+ * which stops the stamping.
+ */
+final class ByteBufferPublisher implements Flow.Publisher<ByteBuffer> {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Consumer<ByteBufferPublisher> producer;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+    private volatile Runnable cancelHandler;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition demanded = lock.newCondition();
+    private long demand;
+    private boolean cancelled;
+    private boolean terminated;
+    private IllegalArgumentException invalidRequest;
+
+    /**
+     * @param producer started once a subscriber subscribed, writes the file through {@link #publish(ByteBuffer)}
+     *                 or {@link #getOutputStream()} and terminates it with {@link #complete()} or {@link #fail(Throwable)}
+     */
+    ByteBufferPublisher(Consumer<ByteBufferPublisher> producer) {
+        this.producer = producer;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The watermarked file can be subscribed only once"));
+            return;
+        }
+        this.subscriber = subscriber;
+        subscriber.onSubscribe(new Subscription());
+        producer.accept(this);
+    }
+
+    /**
+     * @param cancelHandler run once when the subscriber cancels, e.g. to stop receiving the input
+     */
+    void onCancel(Runnable cancelHandler) {
+        this.cancelHandler = cancelHandler;
+    }
+
+    /**
+     * Publishes the buffer as it is, waiting for the demand of the subscriber
+     *
+     * @throws IOException if the subscription was cancelled
+     */
+    void publish(ByteBuffer buffer) throws IOException {
+        awaitDemand();
+        subscriber.onNext(buffer);
+    }
+
+    /**
+     * Publishes read-only views of the array, without copying it
+     */
+    void publish(byte[] bytes) throws IOException {
+        ByteBuffer all = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        for (int position = 0; position < bytes.length; position += CHUNK_SIZE) {
+            all.limit(Math.min(bytes.length, position + CHUNK_SIZE)).position(position);
+            publish(all.slice());
+        }
+    }
+
+    /**
+     * @return stream publishing what is written in chunks of {@link #CHUNK_SIZE} bytes, flushed chunks may be shorter
+     */
+    OutputStream getOutputStream() {
+        return new ChunkOutputStream();
+    }
+
+    void complete() {
+        terminate(null);
+    }
+
+    void fail(Throwable throwable) {
+        terminate(throwable);
+    }
+
+    /**
+     * Signals the end of the file once, nothing is signalled after a cancellation except a pending invalid request
+     */
+    private void terminate(Throwable failure) {
+        Throwable error;
+        lock.lock();
+        try {
+            if (terminated) {
+                return;
+            }
+            terminated = true;
+            error = cancelled ? invalidRequest : failure;
+            if (cancelled && error == null) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (error == null) {
+            subscriber.onComplete();
+        } else {
+            subscriber.onError(error);
+        }
+    }
+
+    private void awaitDemand() throws IOException {
+        IllegalArgumentException error;
+        lock.lock();
+        try {
+            while (demand == 0 && !cancelled) {
+                demanded.await();
+            }
+            if (!cancelled) {
+                demand--;
+                return;
+            }
+            error = terminated ? null : invalidRequest;
+            terminated = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the subscriber");
+        } finally {
+            lock.unlock();
+        }
+        if (error != null) {
+            subscriber.onError(error);
+        }
+        throw new IOException("Subscription cancelled");
+    }
+
+    private final class Subscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            lock.lock();
+            try {
+                if (cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    // rule 3.9: signalled by the producing thread, which is the only one calling onNext
+                    invalidRequest = new IllegalArgumentException("Requested " + n + " buffers, the demand must be positive");
+                    cancelled = true;
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                demanded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (n <= 0) {
+                runCancelHandler();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                demanded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            runCancelHandler();
+        }
+
+        private void runCancelHandler() {
+            Runnable handler = cancelHandler;
+            if (handler != null) {
+                handler.run();
+            }
+        }
+    }
+
+    private final class ChunkOutputStream extends OutputStream {
+
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == chunk.length) {
+                flush();
+            }
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == chunk.length) {
+                    flush();
+                }
+                int copied = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, copied);
+                count += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        /**
+         * Publishes the bytes written so far, the subscriber owns the published chunk
+         */
+        @Override
+        public void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count);
+            chunk = new byte[CHUNK_SIZE];
+            count = 0;
+            publish(buffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.pawelgorny.pdfwatermark;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Subscriber collecting a PDF file published as buffers. The cross-reference table of a PDF file is at its end,
+ * so the whole file has to be received before it can be parsed. Up to the threshold the bytes are kept in heap blocks
+ * and joined into the single array the parser reads; a larger file is written to a temporary file, read memory-mapped.
+ * The buffers are requested in a bounded window and copied, they are not retained.
+ */
+final class ByteBufferSpool implements Flow.Subscriber<ByteBuffer>, AutoCloseable {
+
+    private static final Logger LOGGER = org.apache.logging.log4j.LogManager.getLogger(ByteBufferSpool.class);
+
+    static final int WINDOW = 16;
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final long memoryThreshold;
+    private final CompletableFuture<ByteBufferSpool> completion = new CompletableFuture<>();
+    private final List<byte[]> blocks = new ArrayList<>();
+    private Flow.Subscription subscription;
+    private int blockPosition = BLOCK_SIZE;
+    private long length;
+    private byte[] bytes;
+    private Path file;
+    private FileChannel channel;
+
+    /**
+     * @param memoryThreshold length above which the file is spooled to disk
+     */
+    ByteBufferSpool(long memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * @return future completed when the whole file is received, or completed exceptionally with a {@link PdfException}
+     */
+    CompletableFuture<ByteBufferSpool> getCompletion() {
+        return completion;
+    }
+
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        if (completion.isDone()) {
+            subscription.cancel();
+        } else {
+            subscription.request(WINDOW);
+        }
+    }
+
+    @Override
+    public synchronized void onNext(ByteBuffer buffer) {
+        if (completion.isDone()) {
+            return;
+        }
+        try {
+            if (channel == null && length + buffer.remaining() > memoryThreshold) {
+                spoolToDisk();
+            }
+            length += buffer.remaining();
+            if (channel != null) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } else {
+                copyToBlocks(buffer);
+            }
+        } catch (IOException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        if (completion.isDone()) {
+            return;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+        } else {
+            bytes = join();
+        }
+        completion.complete(this);
+    }
+
+    /**
+     * Stops receiving the file, e.g. when the output is not wanted anymore
+     */
+    synchronized void cancel() {
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        fail(new PdfException("Stamping cancelled"));
+    }
+
+    private void copyToBlocks(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (blockPosition == BLOCK_SIZE) {
+                blocks.add(new byte[BLOCK_SIZE]);
+                blockPosition = 0;
+            }
+            int count = Math.min(buffer.remaining(), BLOCK_SIZE - blockPosition);
+            buffer.get(blocks.get(blocks.size() - 1), blockPosition, count);
+            blockPosition += count;
+        }
+    }
+
+    /**
+     * Each block is dropped once copied, so the file is held about once and not twice while it is joined
+     */
+    private byte[] join() {
+        byte[] joined = new byte[(int) length];
+        int position = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            byte[] block = blocks.set(i, null);
+            int count = Math.min(block.length, joined.length - position);
+            System.arraycopy(block, 0, joined, position, count);
+            position += count;
+        }
+        blocks.clear();
+        return joined;
+    }
+
+    private void spoolToDisk() throws IOException {
+        file = Files.createTempFile("pdfwatermark-", ".pdf");
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        for (int i = 0; i < blocks.size(); i++) {
+            int count = i == blocks.size() - 1 ? blockPosition : BLOCK_SIZE;
+            ByteBuffer block = ByteBuffer.wrap(blocks.get(i), 0, count);
+            while (block.hasRemaining()) {
+                channel.write(block);
+            }
+        }
+        blocks.clear();
+        LOGGER.debug("Published input larger than {} bytes, spooled to {}", memoryThreshold, file);
+    }
+
+    private void fail(Throwable throwable) {
+        if (completion.isDone()) {
+            return;
+        }
+        close();
+        completion.completeExceptionally(throwable instanceof PdfException ? throwable : new PdfException(throwable));
+    }
+
+    /**
+     * @return the received file when it was kept in memory, null if it was spooled to disk
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the temporary file holding the received file, null if it was kept in memory
+     */
+    Path getFile() {
+        return file;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Releases the received bytes and deletes the temporary file
+     */
+    @Override
+    public synchronized void close() {
+        blocks.clear();
+        bytes = null;
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot delete the spool file " + file, e);
+        }
+    }
+}
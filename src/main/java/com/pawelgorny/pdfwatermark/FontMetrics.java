@@ -0,0 +1,93 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Font;
+import com.lowagie.text.pdf.BaseFont;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of fonts and text widths, and fitting of the font size to the available length.
+ * The width of a text is linear in the font size, so it is measured once for a unit font size
+ * and the fitting size is calculated directly instead of shrinking the font point by point.
+ * Thread-safe, one instance is shared by the service.
+ */
+final class FontMetrics {
+
+    private static final int MAX_CACHED_FONTS = 1024;
+    private static final int MAX_CACHED_WIDTHS = 16384;
+    private static final int MIN_FONT_SIZE = 1;
+
+    private final ConcurrentMap<List<Object>, Font> fonts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<Object>, BaseFont> baseFonts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<Object>, Float> unitWidths = new ConcurrentHashMap<>();
+
+    Font getFont(int family, float size, int style, Color color) {
+        List<Object> key = Arrays.<Object>asList(family, size, style, color);
+        Font font = fonts.get(key);
+        if (font == null) {
+            font = new Font(family, size, style, color);
+            if (fonts.size() >= MAX_CACHED_FONTS) {
+                fonts.clear();
+            }
+            fonts.put(key, font);
+        }
+        return font;
+    }
+
+    /**
+     * @return base font of the family and style, the size and color do not matter
+     */
+    BaseFont getBaseFont(int family, int style) {
+        List<Object> key = Arrays.<Object>asList(family, style);
+        BaseFont baseFont = baseFonts.get(key);
+        if (baseFont == null) {
+            baseFont = new Font(family, Font.DEFAULTSIZE, style).getCalculatedBaseFont(false);
+            baseFonts.put(key, baseFont);
+        }
+        return baseFont;
+    }
+
+    /**
+     * @return width of the text for the font size 1
+     */
+    float getUnitWidth(BaseFont baseFont, String text) {
+        List<Object> key = Arrays.<Object>asList(baseFont, text);
+        Float width = unitWidths.get(key);
+        if (width == null) {
+            width = baseFont.getWidthPoint(text, 1);
+            if (unitWidths.size() >= MAX_CACHED_WIDTHS) {
+                unitWidths.clear();
+            }
+            unitWidths.put(key, width);
+        }
+        return width;
+    }
+
+    /**
+     * Returns the biggest integer font size, not bigger than the preferred one, for which the text is shorter than the available length.
+     * Same result as decreasing the preferred size by one point until the text fits, but without the loop.
+     *
+     * @param unitWidth       width of the text for the font size 1
+     * @param availableLength length the text has to fit in
+     * @param preferredSize   font size from the settings
+     * @return font size, at least 1
+     */
+    static int fitFontSize(float unitWidth, double availableLength, int preferredSize) {
+        if (unitWidth <= 0 || unitWidth * preferredSize < availableLength) {
+            return preferredSize;
+        }
+        int size = (int) Math.ceil(availableLength / unitWidth) - 1;
+        // correction of floating point rounding around the limit
+        while (size > MIN_FONT_SIZE && unitWidth * size >= availableLength) {
+            size--;
+        }
+        while (size + 1 < preferredSize && unitWidth * (size + 1) < availableLength) {
+            size++;
+        }
+        return Math.max(size, MIN_FONT_SIZE);
+    }
+}
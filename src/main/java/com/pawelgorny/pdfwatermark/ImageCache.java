@@ -0,0 +1,63 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.BadElementException;
+import com.lowagie.text.Image;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded watermark images, keyed by the SHA-256 hash of their content. An image is decoded once into its
+ * ready-to-embed form (for PNG the compressed samples are kept as they are) and shared by all the documents:
+ * it is never modified, only placed with a transformation matrix. Least recently used images are dropped first.
+ */
+final class ImageCache {
+
+    private final Map<String, Image> images;
+
+    ImageCache(final int maxImages) {
+        images = Collections.synchronizedMap(new LinkedHashMap<String, Image>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+                return size() > maxImages;
+            }
+        });
+    }
+
+    Image get(byte[] content) throws PdfException {
+        String key = sha256(content);
+        Image image = images.get(key);
+        if (image == null) {
+            try {
+                image = Image.getInstance(content);
+            } catch (BadElementException | IOException e) {
+                throw new PdfException(e);
+            }
+            images.put(key, image);
+        }
+        return image;
+    }
+
+    int size() {
+        return images.size();
+    }
+
+    static String sha256(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Phrase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class InternalWatermarkVariables {
+
+    private int pageWidth;
+    private int pageHeight;
+    private double pageDiagonalLength;
+    private int angle;
+    private float lineHeight;
+    private float lineWidth;
+    private float fontSizeValue;
+    private float centerLine;
+    private float tileWidth;
+    private float tileHeight;
+    private List<Phrase> phrases;
+
+    public InternalWatermarkVariables() {
+        pageWidth = -1;
+        pageHeight = -1;
+        pageDiagonalLength = 0;
+        angle = 0;
+        lineHeight = 0L;
+        lineWidth = 0L;
+        fontSizeValue = 0L;
+        centerLine = 0L;
+
+        phrases = new ArrayList<>();
+    }
+
+    public int getPageWidth() {
+        return pageWidth;
+    }
+
+    public double getPageDiagonalLength() {
+        return pageDiagonalLength;
+    }
+
+    public void setPageWidth(int pageWidth) {
+        this.pageWidth = pageWidth;
+    }
+
+    public void setPageDiagonalLength(double pageDiagonalLength) {
+        this.pageDiagonalLength = pageDiagonalLength;
+    }
+
+    public int getPageHeight() {
+        return pageHeight;
+    }
+
+    public void setPageHeight(int pageHeight) {
+        this.pageHeight = pageHeight;
+    }
+
+    public List<Phrase> getPhrases() {
+        return phrases;
+    }
+
+    public int getAngle() {
+        return angle;
+    }
+
+    public void setAngle(int angle) {
+        this.angle = angle;
+    }
+
+    public float getLineHeight() {
+        return lineHeight;
+    }
+
+    public float getLineWidth() {
+        return lineWidth;
+    }
+
+    public float getFontSizeValue() {
+        return fontSizeValue;
+    }
+
+    public void setLineHeight(float lineHeight) {
+        this.lineHeight = lineHeight;
+    }
+
+    public void setLineWidth(float lineWidth) {
+        this.lineWidth = lineWidth;
+    }
+
+    public void setFontSizeValue(float fontSizeValue) {
+        this.fontSizeValue = fontSizeValue;
+    }
+
+    public float getCenterLine() {
+        return centerLine;
+    }
+
+    public void setCenterLine(float centerLine) {
+        this.centerLine = centerLine;
+    }
+
+    public float getTileWidth() {
+        return tileWidth;
+    }
+
+    public void setTileWidth(float tileWidth) {
+        this.tileWidth = tileWidth;
+    }
+
+    public float getTileHeight() {
+        return tileHeight;
+    }
+
+    public void setTileHeight(float tileHeight) {
+        this.tileHeight = tileHeight;
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.pawelgorny.pdfwatermark;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits one Java Flight Recorder event per stamped document ({@code com.pawelgorny.pdfwatermark.Stamp}), lasting
+ * from the start of the stamping to the end of the output.
+ * When the event is not enabled in the recording, the cost is a single check.
+ */
+public class JfrStampListener implements StampListener {
+
+    /**
+     * The event is begun here, so that its duration covers the whole stamping of the document
+     */
+    @Override
+    public void documentStarted(StampMetrics metrics) {
+        StampEvent event = new StampEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            metrics.setListenerState(event);
+        }
+    }
+
+    @Override
+    public void documentStamped(StampMetrics metrics) {
+        commit(metrics, true);
+    }
+
+    @Override
+    public void documentFailed(StampMetrics metrics, PdfException error) {
+        commit(metrics, false);
+    }
+
+    private void commit(StampMetrics metrics, boolean success) {
+        StampEvent event;
+        if (metrics.getListenerState() instanceof StampEvent) {
+            event = (StampEvent) metrics.getListenerState();
+            event.end();
+        } else {
+            // the input of a fan-out failed before any document started
+            event = new StampEvent();
+            if (!event.isEnabled()) {
+                return;
+            }
+        }
+        event.success = success;
+        event.parse = metrics.getStageNanos(StampMetrics.Stage.PARSE);
+        event.layout = metrics.getStageNanos(StampMetrics.Stage.LAYOUT);
+        event.render = metrics.getStageNanos(StampMetrics.Stage.RENDER);
+        event.serialize = metrics.getStageNanos(StampMetrics.Stage.SERIALIZE);
+        event.bytesIn = metrics.getBytesIn();
+        event.bytesOut = metrics.getBytesOut();
+        event.pages = metrics.getPages();
+        event.stampedPages = metrics.getStampedPages();
+        event.layoutCacheHits = metrics.getLayoutCacheHits();
+        event.layoutCacheMisses = metrics.getLayoutCacheMisses();
+        event.commit();
+    }
+
+    @Name("com.pawelgorny.pdfwatermark.Stamp")
+    @Label("PDF Watermark Stamp")
+    @Category("PdfWatermark")
+    @Description("One document stamped by PdfWatermarkServiceImpl")
+    static class StampEvent extends Event {
+
+        @Label("Success")
+        boolean success;
+
+        @Label("Parse")
+        @Timespan(Timespan.NANOSECONDS)
+        long parse;
+
+        @Label("Layout")
+        @Timespan(Timespan.NANOSECONDS)
+        long layout;
+
+        @Label("Render")
+        @Timespan(Timespan.NANOSECONDS)
+        long render;
+
+        @Label("Serialize")
+        @Timespan(Timespan.NANOSECONDS)
+        long serialize;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Pages")
+        int pages;
+
+        @Label("Stamped Pages")
+        int stampedPages;
+
+        @Label("Layout Cache Hits")
+        int layoutCacheHits;
+
+        @Label("Layout Cache Misses")
+        int layoutCacheMisses;
+    }
+}
@@ -0,0 +1,189 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Global heap budget shared by the stamping jobs of a service. Every job reserves its estimated footprint
+ * (computed from the input length and the page count) before the document is parsed and releases it when done.
+ * When the budget is exhausted the job waits, fails or, for stream inputs, is spooled to a temporary file
+ * and stamped from disk, depending on the {@link Policy}.
+ */
+public final class MemoryBudget {
+
+    public enum Policy {
+        /**
+         * the job waits until enough of the budget is released
+         */
+        WAIT,
+        /**
+         * the job fails with a {@link MemoryBudgetExceededException}
+         */
+        FAIL_FAST,
+        /**
+         * stream inputs are copied to a temporary file and stamped memory-mapped, other inputs wait
+         */
+        SPOOL_TO_DISK
+    }
+
+    /**
+     * Parsed page dictionary, resources and watermark content stream of one page
+     */
+    static final long BYTES_PER_PAGE = 8 * 1024;
+    /**
+     * An input read into memory is held as a byte array, the output of an append is at least as large
+     */
+    static final int IN_MEMORY_INPUT_FACTOR = 2;
+    static final long DEFAULT_UNKNOWN_LENGTH = 16L * 1024 * 1024;
+
+    private final long maxBytes;
+    private final Policy policy;
+    private volatile long unknownLength = DEFAULT_UNKNOWN_LENGTH;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long usedBytes;
+    private int queueDepth;
+
+    /**
+     * @param maxBytes maximal sum of the estimated footprints of the jobs running at the same time
+     * @param policy   what happens to a job which does not fit into the budget
+     */
+    public MemoryBudget(long maxBytes, Policy policy) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.policy = policy == null ? Policy.WAIT : policy;
+    }
+
+    /**
+     * Estimated footprint of a document read into memory, the page count is 0 when not known yet
+     */
+    static long estimateInMemory(long length, int pages) {
+        return IN_MEMORY_INPUT_FACTOR * length + pages * BYTES_PER_PAGE;
+    }
+
+    /**
+     * Estimated footprint of a document read memory-mapped, only the pages count
+     */
+    static long estimateMapped(int pages) {
+        return pages * BYTES_PER_PAGE;
+    }
+
+    /**
+     * Reserves the given number of bytes. A job larger than the whole budget fails or is spooled,
+     * a waiting one is admitted alone once the budget is free.
+     *
+     * @param canSpool true if the caller is able to continue from disk
+     * @return the reservation to close when the job is done, null if the caller has to spool the job to disk
+     */
+    Reservation acquire(long bytes, boolean canSpool) throws PdfException {
+        long requested = Math.max(bytes, 0);
+        long reserved = Math.min(requested, maxBytes);
+        lock.lock();
+        try {
+            if (usedBytes + requested > maxBytes) {
+                if (policy == Policy.FAIL_FAST) {
+                    throw new MemoryBudgetExceededException("Memory budget exceeded: " + requested + " bytes requested, "
+                            + usedBytes + " of " + maxBytes + " in use");
+                }
+                if (policy == Policy.SPOOL_TO_DISK && canSpool) {
+                    return null;
+                }
+                queueDepth++;
+                try {
+                    while (usedBytes + reserved > maxBytes) {
+                        released.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PdfException(e);
+                } finally {
+                    queueDepth--;
+                }
+            }
+            usedBytes += reserved;
+            return new Reservation(reserved);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long bytes) {
+        lock.lock();
+        try {
+            usedBytes -= bytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return sum of the estimated footprints of the jobs running now
+     */
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of jobs waiting for the budget
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Length assumed for a stream input which does not report its length, {@value #DEFAULT_UNKNOWN_LENGTH} bytes by default
+     */
+    public void setUnknownLength(long unknownLength) {
+        this.unknownLength = unknownLength;
+    }
+
+    long getUnknownLength() {
+        return unknownLength;
+    }
+
+    /**
+     * Part of the budget held by one job
+     */
+    final class Reservation implements AutoCloseable {
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (bytes > 0) {
+                release(bytes);
+                bytes = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget{" + getUsedBytes() + "/" + maxBytes + " bytes, " + getQueueDepth() + " waiting, " + policy + "}";
+    }
+}
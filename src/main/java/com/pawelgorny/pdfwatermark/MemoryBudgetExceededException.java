@@ -0,0 +1,13 @@
+package com.pawelgorny.pdfwatermark;
+
+/**
+ * Thrown when a job does not fit into the {@link MemoryBudget} and the policy is {@link MemoryBudget.Policy#FAIL_FAST}
+ */
+public class MemoryBudgetExceededException extends PdfException {
+
+    private static final long serialVersionUID = 4675211530731290185L;
+
+    public MemoryBudgetExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,21 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Opens the output of one variant of a fan-out stamping
+ *
+ * @see PDFWatermarkService#stampEach(java.io.InputStream, List, PdfWatermarkSettings, OutputStreamProvider)
+ */
+public interface OutputStreamProvider {
+
+    /**
+     * @param index position of the lines in the list of variants
+     * @param lines watermark lines of the variant
+     * @return output receiving the watermarked PDF file of the variant, closed by the service
+     * @throws IOException if the output cannot be opened
+     */
+    OutputStream open(int index, List<String> lines) throws IOException;
+}
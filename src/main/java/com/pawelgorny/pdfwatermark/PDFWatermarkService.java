@@ -2,7 +2,14 @@ package com.pawelgorny.pdfwatermark;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 
 public interface PDFWatermarkService {
     /**
@@ -15,4 +22,190 @@ public interface PDFWatermarkService {
      * @throws PdfException
      */
     void stamp(InputStream input, OutputStream output, List<String> lines, PdfWatermarkSettings settings) throws PdfException;
+
+    /**
+     * Generates a PDF File based in the input PDF file with a precompiled watermark.
+     *
+     * @param input    Input stream with the original PDF file
+     * @param output   Output stream. It will contain the watermarked PDF file
+     * @param template Watermark compiled by {@link #compile(List, PdfWatermarkSettings)}
+     * @throws PdfException
+     */
+    void stamp(InputStream input, OutputStream output, WatermarkTemplate template) throws PdfException;
+
+    /**
+     * Same as {@link #stamp(InputStream, OutputStream, WatermarkTemplate)}, aborted when the deadline passes or the token is cancelled.
+     *
+     * @param deadline checked before and after parsing, before every page and before the output is written
+     * @throws StampCancelledException when the deadline tripped, the reader and the stamper are released and the output is incomplete
+     */
+    void stamp(InputStream input, OutputStream output, WatermarkTemplate template, StampDeadline deadline) throws PdfException;
+
+    /**
+     * Generates a PDF File based in the input PDF file with a watermark.
+     * The input file is memory-mapped and parsed lazily, so the heap use does not depend on the size of the file.
+     *
+     * @param input    Path of the original PDF file
+     * @param output   Path of the watermarked PDF file, created or overwritten
+     * @param lines    Text of the watermark to be applied
+     * @param settings Settings for the watermark
+     * @throws PdfException
+     */
+    void stamp(Path input, Path output, List<String> lines, PdfWatermarkSettings settings) throws PdfException;
+
+    /**
+     * @see #stamp(Path, Path, List, PdfWatermarkSettings)
+     */
+    void stamp(Path input, Path output, WatermarkTemplate template) throws PdfException;
+
+    /**
+     * @see #stamp(InputStream, OutputStream, WatermarkTemplate, StampDeadline)
+     */
+    void stamp(Path input, Path output, WatermarkTemplate template, StampDeadline deadline) throws PdfException;
+
+    /**
+     * Generates a PDF File based in the input PDF file with a watermark, written to a channel (file, socket...).
+     * The input file is memory-mapped, the watermarked document is written to the channel through a buffer.
+     * The channel is not closed.
+     *
+     * @param input    Path of the original PDF file
+     * @param output   Channel receiving the watermarked PDF file
+     * @param template Watermark compiled by {@link #compile(List, PdfWatermarkSettings)}
+     * @throws PdfException
+     */
+    void stamp(Path input, WritableByteChannel output, WatermarkTemplate template) throws PdfException;
+
+    /**
+     * Generates a PDF File based in the input PDF file with a watermark.
+     * The document is parsed lazily, the remaining bytes of the buffer are the input PDF file.
+     *
+     * @param input    Buffer with the original PDF file, its position is not changed
+     * @param output   Output stream. It will contain the watermarked PDF file
+     * @param lines    Text of the watermark to be applied
+     * @param settings Settings for the watermark
+     * @throws PdfException
+     */
+    void stamp(ByteBuffer input, OutputStream output, List<String> lines, PdfWatermarkSettings settings) throws PdfException;
+
+    /**
+     * @see #stamp(ByteBuffer, OutputStream, List, PdfWatermarkSettings)
+     */
+    void stamp(ByteBuffer input, OutputStream output, WatermarkTemplate template) throws PdfException;
+
+    /**
+     * Reactive variant of {@link #stamp(InputStream, OutputStream, List, PdfWatermarkSettings)}.
+     *
+     * @see #stamp(Flow.Publisher, WatermarkTemplate)
+     */
+    Flow.Publisher<ByteBuffer> stamp(Flow.Publisher<ByteBuffer> input, List<String> lines, PdfWatermarkSettings settings) throws PdfException;
+
+    /**
+     * Reactive variant of {@link #stamp(InputStream, OutputStream, WatermarkTemplate)}. The input is subscribed when the
+     * returned publisher is subscribed, with a bounded demand. The whole input is received before it is parsed (the
+     * cross-reference table of a PDF file is at its end): small files are kept in memory, larger ones are spooled to a
+     * temporary file. The output is published as it is written, as far as the subscriber requested it, and is not
+     * collected in memory. The stamping runs on the executor configured in the service.
+     *
+     * @param input    Publisher of the original PDF file, its buffers are copied and not retained
+     * @param template Watermark compiled by {@link #compile(List, PdfWatermarkSettings)}
+     * @return single-subscriber publisher of the watermarked PDF file, signalling a {@link PdfException} on failure
+     */
+    Flow.Publisher<ByteBuffer> stamp(Flow.Publisher<ByteBuffer> input, WatermarkTemplate template);
+
+    /**
+     * Generates one watermarked PDF file per variant of the watermark lines from a single input, e.g. one per recipient.
+     * The input is parsed once, each variant only costs its layout and its incremental update.
+     *
+     * @param input           Input stream with the original PDF file
+     * @param linesPerVariant Text of the watermark of each variant
+     * @param settings        Settings for the watermark, common to all the variants
+     * @param outputs         Opens the output of each variant
+     * @throws PdfException at the first variant which cannot be generated: its output is closed, the outputs of the
+     *                      previous variants are kept and the following variants are not generated
+     */
+    void stampEach(InputStream input, List<List<String>> linesPerVariant, PdfWatermarkSettings settings, OutputStreamProvider outputs) throws PdfException;
+
+    /**
+     * Replaces the watermark of a document stamped with {@link PdfWatermarkSettings.RenderMode#REPLACEABLE_XOBJECT}.
+     * Only the recorded watermark XObjects are rewritten, in an incremental update appended to the input:
+     * the cost does not depend on the number of pages. The pages keep the layer and the page selection of the first stamp.
+     *
+     * @param input  Input stream with a PDF file stamped with a replaceable watermark
+     * @param output Output stream with the PDF file carrying the new watermark
+     * @param lines  Text of the new watermark
+     * @param settings Settings of the new watermark
+     * @throws PdfException if the document has no replaceable watermark
+     */
+    void replaceWatermark(InputStream input, OutputStream output, List<String> lines, PdfWatermarkSettings settings) throws PdfException;
+
+    /**
+     * @see #replaceWatermark(InputStream, OutputStream, List, PdfWatermarkSettings)
+     */
+    void replaceWatermark(InputStream input, OutputStream output, WatermarkTemplate template) throws PdfException;
+
+    /**
+     * Same as {@link #replaceWatermark(InputStream, OutputStream, WatermarkTemplate)}, aborted when the deadline passes or the token is cancelled.
+     *
+     * @param deadline checked before and after parsing, before every rewritten XObject and before the output is written
+     * @throws StampCancelledException when the deadline tripped, the output is incomplete
+     */
+    void replaceWatermark(InputStream input, OutputStream output, WatermarkTemplate template, StampDeadline deadline) throws PdfException;
+
+    /**
+     * Stamps a batch of documents in parallel. Every job is isolated: a failure is reported in its result
+     * and does not stop the other jobs.
+     *
+     * @param jobs documents to stamp
+     * @return result of every job, in the order of the jobs, and the throughput of the batch
+     * @throws PdfException if the batch is interrupted
+     */
+    BatchResult stampAll(Collection<WatermarkJob> jobs) throws PdfException;
+
+    /**
+     * Non-blocking variant of {@link #stamp(InputStream, OutputStream, List, PdfWatermarkSettings)}, executed by the executor
+     * configured in the service.
+     *
+     * @return future completed when the output is written, or completed exceptionally with the {@link PdfException}
+     */
+    CompletableFuture<Void> stampAsync(InputStream input, OutputStream output, List<String> lines, PdfWatermarkSettings settings);
+
+    /**
+     * Non-blocking variant of {@link #stamp(InputStream, OutputStream, WatermarkTemplate)}
+     *
+     * @param executor executor running the stamping, see {@link StampExecutors} for virtual threads
+     * @return future completed when the output is written, or completed exceptionally with the {@link PdfException};
+     * cancelling it stops the stamping at its next check
+     */
+    CompletableFuture<Void> stampAsync(InputStream input, OutputStream output, WatermarkTemplate template, Executor executor);
+
+    /**
+     * Non-blocking variant of {@link #stamp(Path, Path, WatermarkTemplate)}
+     *
+     * @param executor executor running the stamping, see {@link StampExecutors} for virtual threads
+     * @return future completed when the output file is written, or completed exceptionally with the {@link PdfException};
+     * cancelling it stops the stamping at its next check
+     */
+    CompletableFuture<Void> stampAsync(Path input, Path output, WatermarkTemplate template, Executor executor);
+
+    /**
+     * Compiles the lines and a snapshot of the settings into a reusable, thread-safe watermark.
+     * Later changes of the settings object do not affect the returned template.
+     *
+     * @param lines    Text of the watermark to be applied
+     * @param settings Settings for the watermark
+     * @return compiled watermark
+     * @throws PdfException if the settings are not valid
+     */
+    WatermarkTemplate compile(List<String> lines, PdfWatermarkSettings settings) throws PdfException;
+
+    /**
+     * Prepares the service for the first requests: loads the fonts and images of the settings, then stamps a synthetic
+     * in-memory document with every watermark, round after round, until the rounds stop getting faster (the hot methods
+     * are compiled) or the maximum duration of the warm-up is reached. The stamps are reported to the stamp listener.
+     *
+     * @param settings settings used in production, the default settings at every position if none are given
+     * @return duration and progress of the warm-up
+     * @throws PdfException if the settings are not valid or the synthetic document cannot be stamped
+     */
+    WarmUpReport warmUp(PdfWatermarkSettings... settings) throws PdfException;
 }
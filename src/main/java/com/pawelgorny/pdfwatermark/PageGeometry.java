@@ -0,0 +1,94 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.PdfReader;
+
+/**
+ * Key of a computed watermark layout: size and rotation of the page as stored in the document, and the watermark position.
+ * Pages sharing the same geometry share the same layout.
+ */
+final class PageGeometry {
+
+    private static final int ANGLE_180 = 180;
+    private static final int ANGLE_360 = 360;
+
+    private final float width;
+    private final float height;
+    private final int rotation;
+    private final PdfWatermarkSettings.WatermarkPosition position;
+
+    PageGeometry(float width, float height, int rotation, PdfWatermarkSettings.WatermarkPosition position) {
+        this.width = width;
+        this.height = height;
+        this.rotation = ((rotation % ANGLE_360) + ANGLE_360) % ANGLE_360;
+        this.position = position;
+    }
+
+    static PageGeometry of(PdfReader reader, int pageNumber, PdfWatermarkSettings.WatermarkPosition position) {
+        Rectangle pageSize = reader.getPageSize(pageNumber);
+        return new PageGeometry(pageSize.getWidth(), pageSize.getHeight(), reader.getPageRotation(pageNumber), position);
+    }
+
+    float getWidth() {
+        return width;
+    }
+
+    float getHeight() {
+        return height;
+    }
+
+    int getRotation() {
+        return rotation;
+    }
+
+    PdfWatermarkSettings.WatermarkPosition getPosition() {
+        return position;
+    }
+
+    boolean isRotated() {
+        return rotation % ANGLE_180 != 0;
+    }
+
+    /**
+     * @return width of the page as displayed, after rotation
+     */
+    float getDisplayWidth() {
+        return isRotated() ? height : width;
+    }
+
+    /**
+     * @return height of the page as displayed, after rotation
+     */
+    float getDisplayHeight() {
+        return isRotated() ? width : height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PageGeometry)) {
+            return false;
+        }
+        PageGeometry that = (PageGeometry) o;
+        return Float.compare(that.width, width) == 0
+                && Float.compare(that.height, height) == 0
+                && rotation == that.rotation
+                && position == that.position;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(width);
+        result = 31 * result + Float.floatToIntBits(height);
+        result = 31 * result + rotation;
+        result = 31 * result + (position != null ? position.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "/" + rotation + "/" + position;
+    }
+}
@@ -0,0 +1,267 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Rule selecting the pages which receive the watermark. Selections are immutable and can be combined,
+ * e.g. the cover, every 10th page and the last page:
+ * <pre>
+ * PageSelection.first(1).or(PageSelection.everyNth(10, 10)).or(PageSelection.last(1))
+ * </pre>
+ * Rules based on the page number only are evaluated without reading the page, a {@link #matching(PagePredicate)} rule
+ * reads the size and rotation of the pages it is evaluated for.
+ */
+public final class PageSelection {
+
+    /**
+     * Condition on the size (in points, as stored in the document) and the rotation of a page
+     */
+    public interface PagePredicate {
+        boolean test(float width, float height, int rotation);
+    }
+
+    private enum Kind {
+        ALL, RANGE, EVERY_NTH, FIRST, LAST, ODD, EVEN, PAGES, MATCHING, OR, AND, NOT
+    }
+
+    private static final PageSelection ALL = new PageSelection(Kind.ALL, 0, 0, null, null, Collections.<PageSelection>emptyList());
+
+    private final Kind kind;
+    private final int first;
+    private final int second;
+    private final int[] pages;
+    private final PagePredicate predicate;
+    private final List<PageSelection> parts;
+
+    private PageSelection(Kind kind, int first, int second, int[] pages, PagePredicate predicate, List<PageSelection> parts) {
+        this.kind = kind;
+        this.first = first;
+        this.second = second;
+        this.pages = pages;
+        this.predicate = predicate;
+        this.parts = parts;
+    }
+
+    private static PageSelection of(Kind kind, int first, int second) {
+        return new PageSelection(kind, first, second, null, null, Collections.<PageSelection>emptyList());
+    }
+
+    public static PageSelection all() {
+        return ALL;
+    }
+
+    /**
+     * @param from first page, starting from 1
+     * @param to   last page, inclusive
+     */
+    public static PageSelection range(int from, int to) {
+        if (from < 1 || to < from) {
+            throw new IllegalArgumentException("Invalid page range " + from + "-" + to);
+        }
+        return of(Kind.RANGE, from, to);
+    }
+
+    /**
+     * @param step  distance between two selected pages
+     * @param start first selected page, starting from 1
+     * @return pages start, start + step, start + 2 * step...
+     */
+    public static PageSelection everyNth(int step, int start) {
+        if (step < 1 || start < 1) {
+            throw new IllegalArgumentException("Invalid step " + step + " or start " + start);
+        }
+        return of(Kind.EVERY_NTH, step, start);
+    }
+
+    /**
+     * @param count number of selected pages, at least 1
+     */
+    public static PageSelection first(int count) {
+        return of(Kind.FIRST, count(count), 0);
+    }
+
+    /**
+     * @param count number of selected pages, at least 1
+     */
+    public static PageSelection last(int count) {
+        return of(Kind.LAST, count(count), 0);
+    }
+
+    private static int count(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Invalid page count " + count);
+        }
+        return count;
+    }
+
+    public static PageSelection odd() {
+        return of(Kind.ODD, 0, 0);
+    }
+
+    public static PageSelection even() {
+        return of(Kind.EVEN, 0, 0);
+    }
+
+    /**
+     * @param pages page numbers, starting from 1
+     */
+    public static PageSelection pages(int... pages) {
+        int[] sorted = pages.clone();
+        Arrays.sort(sorted);
+        return new PageSelection(Kind.PAGES, 0, 0, sorted, null, Collections.<PageSelection>emptyList());
+    }
+
+    /**
+     * @param predicate condition on the size and the rotation of the page
+     */
+    public static PageSelection matching(PagePredicate predicate) {
+        return new PageSelection(Kind.MATCHING, 0, 0, null, Objects.requireNonNull(predicate), Collections.<PageSelection>emptyList());
+    }
+
+    /**
+     * @return pages selected by this selection or by the other one
+     */
+    public PageSelection or(PageSelection other) {
+        return combine(Kind.OR, other);
+    }
+
+    /**
+     * @return pages selected by both selections
+     */
+    public PageSelection and(PageSelection other) {
+        return combine(Kind.AND, other);
+    }
+
+    /**
+     * @return pages not selected by this selection
+     */
+    public PageSelection negate() {
+        return new PageSelection(Kind.NOT, 0, 0, null, null, Collections.singletonList(this));
+    }
+
+    private PageSelection combine(Kind combination, PageSelection other) {
+        List<PageSelection> combined = new ArrayList<>();
+        for (PageSelection selection : Arrays.asList(this, other)) {
+            if (selection.kind == combination) {
+                combined.addAll(selection.parts);
+            } else {
+                combined.add(selection);
+            }
+        }
+        return new PageSelection(combination, 0, 0, null, null, Collections.unmodifiableList(combined));
+    }
+
+    /**
+     * @param page      page number, starting from 1
+     * @param pageCount number of pages of the document
+     * @param geometry  read only when a predicate has to be evaluated
+     */
+    boolean selects(int page, int pageCount, LazyGeometry geometry) {
+        switch (kind) {
+            case ALL:
+                return true;
+            case RANGE:
+                return page >= first && page <= second;
+            case EVERY_NTH:
+                return page >= second && (page - second) % first == 0;
+            case FIRST:
+                return page <= first;
+            case LAST:
+                return page > pageCount - first;
+            case ODD:
+                return (page & 1) == 1;
+            case EVEN:
+                return (page & 1) == 0;
+            case PAGES:
+                return Arrays.binarySearch(pages, page) >= 0;
+            case MATCHING:
+                PageGeometry pageGeometry = geometry.get(page);
+                return predicate.test(pageGeometry.getWidth(), pageGeometry.getHeight(), pageGeometry.getRotation());
+            case OR:
+                for (PageSelection part : parts) {
+                    if (part.selects(page, pageCount, geometry)) {
+                        return true;
+                    }
+                }
+                return false;
+            case AND:
+                for (PageSelection part : parts) {
+                    if (!part.selects(page, pageCount, geometry)) {
+                        return false;
+                    }
+                }
+                return true;
+            case NOT:
+                return !parts.get(0).selects(page, pageCount, geometry);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if a {@link #matching(PagePredicate)} rule is part of the selection, such a selection has no stable
+     * textual form
+     */
+    boolean hasPredicate() {
+        if (kind == Kind.MATCHING) {
+            return true;
+        }
+        for (PageSelection part : parts) {
+            if (part.hasPredicate()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the geometry of a page on demand
+     */
+    interface LazyGeometry {
+        PageGeometry get(int page);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PageSelection)) {
+            return false;
+        }
+        PageSelection that = (PageSelection) o;
+        return kind == that.kind && first == that.first && second == that.second
+                && Arrays.equals(pages, that.pages) && Objects.equals(predicate, that.predicate) && parts.equals(that.parts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, first, second, Arrays.hashCode(pages), predicate, parts);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case OR:
+            case AND:
+                StringBuilder sb = new StringBuilder("(");
+                for (int i = 0; i < parts.size(); i++) {
+                    if (i > 0) {
+                        sb.append(' ').append(kind).append(' ');
+                    }
+                    sb.append(parts.get(i));
+                }
+                return sb.append(')').toString();
+            case NOT:
+                return "NOT " + parts.get(0);
+            case PAGES:
+                return kind + Arrays.toString(pages);
+            default:
+                return kind + "(" + first + "," + second + ")";
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output of the stamper in append mode when the original bytes were already transferred to the destination:
+ * the copy of the original document written first by the stamper is dropped, only the incremental update goes through.
+ * The destination is flushed but not closed, so with nothing already written it only keeps the destination open.
+ */
+class PassthroughOutputStream extends FilterOutputStream {
+
+    private long toSkip;
+
+    PassthroughOutputStream(OutputStream out, long alreadyWritten) {
+        super(out);
+        this.toSkip = alreadyWritten;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (toSkip > 0) {
+            toSkip--;
+        } else {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (toSkip >= len) {
+            toSkip -= len;
+            return;
+        }
+        int skipped = (int) toSkip;
+        toSkip = 0;
+        out.write(b, off + skipped, len - skipped);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
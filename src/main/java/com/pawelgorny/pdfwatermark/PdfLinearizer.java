@@ -0,0 +1,21 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Linearizes (fast web view) a stamped document: first page objects and hint tables at the start of the file, so a viewer
+ * displays the first page before the whole file is downloaded. OpenPDF does not write linearized files, the service
+ * hands the rewritten document to this SPI for the {@link PdfWatermarkSettings.OutputStrategy#LINEARIZED} strategy.
+ *
+ * @see QpdfLinearizer
+ */
+public interface PdfLinearizer {
+
+    /**
+     * @param input  stamped document, fully rewritten (no incremental update)
+     * @param output file receiving the linearized document, created by the caller
+     * @throws IOException if the document cannot be linearized
+     */
+    void linearize(Path input, Path output) throws IOException;
+}
@@ -0,0 +1,327 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Font;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Command line runner stamping every PDF of a directory tree into the same tree under an output directory:
+ * <pre>
+ * java com.pawelgorny.pdfwatermark.PdfWatermarkCli &lt;input dir&gt; &lt;output dir&gt; &lt;settings.properties&gt; [threads]
+ * </pre>
+ * The watermark is compiled once for the whole run. Files are stamped on all cores (or the given number of threads),
+ * each into a hidden partial file moved into place when complete (see {@link PDFWatermarkService#stamp(Path, Path, WatermarkTemplate)}),
+ * so an interrupted run resumes by skipping the outputs which already exist. Throughput and latency percentiles are printed every {@value #PROGRESS_INTERVAL_SECONDS} seconds.
+ * <p>
+ * Settings file: {@code line.1}, {@code line.2}... the lines of the watermark (required), optionally
+ * {@code font.family} (COURIER, HELVETICA, TIMES_ROMAN...), {@code font.size}, {@code font.color} (#RRGGBB),
+ * {@code font.style}, {@code opacity}, {@code position}, {@code tileSpacing}, {@code layer}, {@code align}, {@code firstPageOnly},
+ * {@code renderMode}, {@code outputStrategy}, {@code idempotent}, {@code image} (path of the image file, relative to the
+ * settings file), {@code imageScale}, {@code pageSelection} ({@code all}, {@code odd}, {@code even}, {@code first:N},
+ * {@code last:N}, {@code range:FROM-TO}, {@code every:STEP[:START]} or {@code pages:1,3,5}; selections by page size and
+ * rotation are available from the API only) and {@code info.&lt;key&gt;} entries of the document information.
+ * Values not given keep the defaults of {@link PdfWatermarkSettings#PdfWatermarkSettings(boolean)}.
+ */
+public final class PdfWatermarkCli {
+
+    private static final Logger LOGGER = org.apache.logging.log4j.LogManager.getLogger(PdfWatermarkCli.class);
+
+    static final long PROGRESS_INTERVAL_SECONDS = 5;
+    private static final String PDF_EXTENSION = ".pdf";
+    private static final int EXIT_FAILED_FILES = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private PdfWatermarkCli() {
+    }
+
+    public static void main(String[] args) {
+        int threads = args.length == 4 ? threads(args[3]) : Runtime.getRuntime().availableProcessors();
+        if (args.length < 3 || args.length > 4 || threads < 1) {
+            System.err.println("Usage: PdfWatermarkCli <input dir> <output dir> <settings.properties> [threads, at least 1]");
+            System.exit(EXIT_USAGE);
+        }
+        try {
+            Progress progress = run(Paths.get(args[0]), Paths.get(args[1]), Paths.get(args[2]), threads, System.out);
+            System.exit(progress.failed.get() == 0 ? 0 : EXIT_FAILED_FILES);
+        } catch (IOException | PdfException | IllegalArgumentException e) {
+            System.err.println("Cannot run: " + e.getMessage());
+            System.exit(EXIT_USAGE);
+        }
+    }
+
+    /**
+     * @return the number of threads, 0 if the argument is not a number
+     */
+    static int threads(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stamps the tree, blocks until every file is done
+     *
+     * @return the final counters of the run
+     */
+    static Progress run(Path inputDir, Path outputDir, Path settingsFile, int threads, PrintStream out) throws IOException, PdfException {
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(settingsFile)) {
+            properties.load(input);
+        }
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        final WatermarkTemplate template = service.compile(lines(properties), settings(properties, settingsFile.toAbsolutePath().getParent()));
+        final Progress progress = new Progress();
+        service.setStampListener(new StampListener() {
+            @Override
+            public void documentStamped(StampMetrics metrics) {
+                progress.pages.addAndGet(metrics.getStampedPages());
+            }
+        });
+
+        int parallelism = Math.max(1, threads);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, daemonThreads("pdfwatermark-cli-"));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemonThreads("pdfwatermark-cli-progress-"));
+        reporter.scheduleAtFixedRate(() -> out.println(progress), PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        // the tree is walked lazily, at most two files per thread wait for a thread
+        final Semaphore slots = new Semaphore(parallelism * 2);
+        try (Stream<Path> files = Files.walk(inputDir)) {
+            Iterator<Path> iterator = files.filter(PdfWatermarkCli::isPdf).iterator();
+            while (iterator.hasNext()) {
+                final Path input = iterator.next();
+                final Path output = outputDir.resolve(inputDir.relativize(input).toString());
+                if (Files.exists(output)) {
+                    progress.skipped.incrementAndGet();
+                    continue;
+                }
+                slots.acquire();
+                executor.execute(() -> {
+                    try {
+                        stampFile(service, template, input, output, progress);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PdfException(e);
+        } finally {
+            executor.shutdownNow();
+            reporter.shutdownNow();
+        }
+        out.println(progress);
+        return progress;
+    }
+
+    private static void stampFile(PdfWatermarkServiceImpl service, WatermarkTemplate template, Path input, Path output, Progress progress) {
+        long start = System.nanoTime();
+        try {
+            Files.createDirectories(output.getParent());
+            // written to a partial file and moved into place by the service, a failed file leaves no output
+            service.stamp(input, output, template);
+            progress.latency.recordNanos(System.nanoTime() - start);
+            progress.stamped.incrementAndGet();
+        } catch (PdfException | IOException | RuntimeException e) {
+            // OpenPDF throws unchecked exceptions on some malformed files, they fail the file and not the run
+            progress.failed.incrementAndGet();
+            LOGGER.error("Cannot stamp " + input, e);
+        }
+    }
+
+    private static boolean isPdf(Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(PDF_EXTENSION) && Files.isRegularFile(path);
+    }
+
+    static List<String> lines(Properties properties) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 1; properties.getProperty("line." + i) != null; i++) {
+            lines.add(properties.getProperty("line." + i));
+        }
+        return lines;
+    }
+
+    /**
+     * @param baseDir directory the image path is relative to
+     */
+    static PdfWatermarkSettings settings(Properties properties, Path baseDir) throws IOException {
+        PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+        String value = properties.getProperty("font.family");
+        if (value != null) {
+            int fontFamily = Font.getFamilyIndex(value.trim().replace('_', '-'));
+            if (fontFamily == Font.UNDEFINED) {
+                throw new IllegalArgumentException("Unknown font family " + value.trim());
+            }
+            settings.setFontFamily(fontFamily);
+        }
+        value = properties.getProperty("font.size");
+        if (value != null) {
+            settings.setFontSize(Integer.parseInt(value.trim()));
+        }
+        value = properties.getProperty("font.color");
+        if (value != null) {
+            settings.setFontColor(Color.decode(value.trim()));
+        }
+        value = properties.getProperty("font.style");
+        if (value != null) {
+            settings.setFontStyle(PdfWatermarkSettings.FontStyle.valueOf(value.trim()));
+        }
+        value = properties.getProperty("opacity");
+        if (value != null) {
+            settings.setOpacity(Float.parseFloat(value.trim()));
+        }
+        value = properties.getProperty("position");
+        if (value != null) {
+            settings.setWatermarkPosition(PdfWatermarkSettings.WatermarkPosition.valueOf(value.trim()));
+        }
+        value = properties.getProperty("tileSpacing");
+        if (value != null) {
+            settings.setTileSpacing(Float.parseFloat(value.trim()));
+        }
+        value = properties.getProperty("layer");
+        if (value != null) {
+            settings.setLayer(PdfWatermarkSettings.Layer.valueOf(value.trim()));
+        }
+        value = properties.getProperty("align");
+        if (value != null) {
+            settings.setAlign(PdfWatermarkSettings.Align.valueOf(value.trim()));
+        }
+        value = properties.getProperty("firstPageOnly");
+        if (value != null) {
+            settings.setFirstPageOnly(Boolean.parseBoolean(value.trim()));
+        }
+        value = properties.getProperty("renderMode");
+        if (value != null) {
+            settings.setRenderMode(PdfWatermarkSettings.RenderMode.valueOf(value.trim()));
+        }
+        value = properties.getProperty("outputStrategy");
+        if (value != null) {
+            settings.setOutputStrategy(PdfWatermarkSettings.OutputStrategy.valueOf(value.trim()));
+        }
+        value = properties.getProperty("idempotent");
+        if (value != null) {
+            settings.setIdempotent(Boolean.parseBoolean(value.trim()));
+        }
+        value = properties.getProperty("image");
+        if (value != null) {
+            settings.setImage(Files.readAllBytes(baseDir.resolve(value.trim())));
+        }
+        value = properties.getProperty("imageScale");
+        if (value != null) {
+            settings.setImageScale(Float.parseFloat(value.trim()));
+        }
+        value = properties.getProperty("pageSelection");
+        if (value != null) {
+            settings.setPageSelection(pageSelection(value.trim()));
+        }
+        Map<String, String> infos = new LinkedHashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("info.")) {
+                infos.put(name.substring("info.".length()), properties.getProperty(name));
+            }
+        }
+        if (!infos.isEmpty()) {
+            settings.setInfos(infos);
+        }
+        return settings;
+    }
+
+    /**
+     * @param value {@code all}, {@code odd}, {@code even}, {@code first:N}, {@code last:N}, {@code range:FROM-TO},
+     *              {@code every:STEP[:START]} or {@code pages:1,3,5}
+     */
+    static PageSelection pageSelection(String value) {
+        String[] parts = value.split(":", 2);
+        String argument = parts.length == 2 ? parts[1].trim() : "";
+        switch (parts[0].trim().toLowerCase(Locale.ROOT)) {
+            case "all":
+                return PageSelection.all();
+            case "odd":
+                return PageSelection.odd();
+            case "even":
+                return PageSelection.even();
+            case "first":
+                return PageSelection.first(Integer.parseInt(argument));
+            case "last":
+                return PageSelection.last(Integer.parseInt(argument));
+            case "range": {
+                String[] bounds = argument.split("-", 2);
+                if (bounds.length != 2) {
+                    throw new IllegalArgumentException("Invalid page range " + argument);
+                }
+                return PageSelection.range(Integer.parseInt(bounds[0].trim()), Integer.parseInt(bounds[1].trim()));
+            }
+            case "every": {
+                String[] numbers = argument.split(":", 2);
+                return PageSelection.everyNth(Integer.parseInt(numbers[0].trim()), numbers.length == 2 ? Integer.parseInt(numbers[1].trim()) : 1);
+            }
+            case "pages": {
+                String[] numbers = argument.split(",");
+                int[] pages = new int[numbers.length];
+                for (int i = 0; i < numbers.length; i++) {
+                    pages[i] = Integer.parseInt(numbers[i].trim());
+                }
+                return PageSelection.pages(pages);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown page selection " + value);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Counters of a run, updated by the worker threads
+     */
+    static final class Progress {
+        private static final double NANOS_PER_SECOND = 1e9;
+
+        private final long start = System.nanoTime();
+        final AtomicLong stamped = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong pages = new AtomicLong();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        @Override
+        public String toString() {
+            double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+            return String.format(Locale.ROOT, "%d stamped, %d skipped, %d failed, %d pages in %.1f s: %.1f docs/s, %.1f pages/s, %s",
+                    stamped.get(), skipped.get(), failed.get(), pages.get(), seconds,
+                    stamped.get() / seconds, pages.get() / seconds, latency.toPercentileString());
+        }
+    }
+}
@@ -5,134 +5,1569 @@ package com.pawelgorny.pdfwatermark;
 //import com.itextpdf.text.Font;
 //import com.itextpdf.text.Phrase;
 //import com.itextpdf.text.pdf.*;
+import com.lowagie.text.Document;
 import com.lowagie.text.DocumentException;
 import com.lowagie.text.Font;
+import com.lowagie.text.Image;
+import com.lowagie.text.PageSize;
+import com.lowagie.text.Paragraph;
 import com.lowagie.text.Phrase;
+import com.lowagie.text.Rectangle;
 import com.lowagie.text.pdf.*;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 @Service
-public class PdfWatermarkServiceImpl implements PDFWatermarkService {
+public class PdfWatermarkServiceImpl implements PDFWatermarkService, InitializingBean {
 
     private static final Logger LOGGER = org.apache.logging.log4j.LogManager.getLogger(PdfWatermarkServiceImpl.class);
 
+    private static final String LOG_ERROR_ITEXT = "Error (from Itext) when working with watermarking";
     private static final String LOG_ERROR_WATERMARK_POSITION_NOT_FOUND = "Watermark position not found in available values";
     private static final double HALF_PI = Math.PI / 2;
     private static final int UNDERLINED_FONT_ADDSPACE_DIVSOR = 4;
     private static final int ANGLE_90 = 90;
     private static final int ANGLE_180 = 180;
     private static final int ANGLE_270 = 270;
+    private static final int DEFAULT_TEMPLATE_CACHE_SIZE = 64;
+    private static final int DEFAULT_IMAGE_CACHE_SIZE = 32;
+    /**
+     * AUTO output strategy: documents up to this size are rewritten, the rewrite costs little and removes dead objects
+     */
+    private static final long AUTO_REWRITE_MAX_BYTES = 1024 * 1024;
+    /**
+     * AUTO output strategy: larger documents are rewritten once they carry this many incremental updates
+     */
+    private static final int AUTO_REWRITE_MIN_UPDATES = 2;
+    /**
+     * Published inputs larger than this are spooled to a temporary file
+     */
+    private static final long DEFAULT_STREAMING_MEMORY_THRESHOLD = 16L * 1024 * 1024;
+    private static final byte[] EOF_MARKER = {'%', '%', 'E', 'O', 'F'};
+    private static final Duration DEFAULT_WARM_UP_MAX_DURATION = Duration.ofSeconds(10);
+    /**
+     * Warm-up: rounds always run before checking whether they stopped getting faster
+     */
+    private static final int WARM_UP_MIN_ROUNDS = 10;
+    /**
+     * Warm-up: consecutive rounds without a significant gain after which the hot methods are considered compiled
+     */
+    private static final int WARM_UP_STABLE_ROUNDS = 5;
+    /**
+     * Warm-up: a round faster than the best one by less than this fraction is no gain
+     */
+    private static final double WARM_UP_MIN_GAIN = 0.05;
 
     /*@Value("#{'${pdfEncryptionOwner}'}")*/ // for encrypted files
     private String pdfEncryptionOwner = "";
 
+    private final FontMetrics fontMetrics = new FontMetrics();
+    private final ImageCache imageCache = new ImageCache(DEFAULT_IMAGE_CACHE_SIZE);
+
+    private final AtomicLong layoutCacheHits = new AtomicLong();
+    private final AtomicLong layoutCacheMisses = new AtomicLong();
+
+    private volatile StampListener stampListener = StampListener.NO_OP;
+
+    private volatile MemoryBudget memoryBudget;
+
+    private volatile Executor asyncExecutor = ForkJoinPool.commonPool();
+    /**
+     * Executor created by {@link #setVirtualThreads(boolean)}, shut down when it is replaced
+     */
+    private ExecutorService ownedAsyncExecutor;
+
+    private int batchParallelism = Runtime.getRuntime().availableProcessors();
+    private int batchQueueCapacity = batchParallelism * 2;
+
+    private volatile int templateCacheSize = DEFAULT_TEMPLATE_CACHE_SIZE;
+
+    private volatile long streamingMemoryThreshold = DEFAULT_STREAMING_MEMORY_THRESHOLD;
+    private volatile PdfLinearizer linearizer = new QpdfLinearizer();
+
+    private boolean warmUpOnStartup;
+    private volatile Duration warmUpMaxDuration = DEFAULT_WARM_UP_MAX_DURATION;
+    private volatile WarmUpReport warmUpReport;
+    private final Map<List<Object>, WatermarkTemplate> templateCache = Collections.synchronizedMap(
+            new LinkedHashMap<List<Object>, WatermarkTemplate>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, WatermarkTemplate> eldest) {
+                    return size() > templateCacheSize;
+                }
+            });
+
     public void stamp(InputStream input, OutputStream output, List<String> lines, PdfWatermarkSettings settings) throws PdfException {
+        stamp(input, output, compile(lines, settings));
+    }
+
+    public WatermarkTemplate compile(List<String> lines, PdfWatermarkSettings settings) throws PdfException {
+        if (settings == null) {
+            throw new PdfException("Watermark settings must not be null");
+        }
+        List<Object> key = WatermarkTemplate.key(lines, settings);
+        WatermarkTemplate template = templateCache.get(key);
+        if (template == null) {
+            template = new WatermarkTemplate(lines, settings, fontMetrics, imageCache);
+            templateCache.put(key, template);
+        }
+        return template;
+    }
+
+    /**
+     * The watermarks are compiled outside of the template cache, with the fonts and images going to the shared caches.
+     * A LINEARIZED strategy is warmed as REWRITE, the linearizer is an external tool.
+     */
+    public WarmUpReport warmUp(PdfWatermarkSettings... settings) throws PdfException {
+        long start = System.nanoTime();
+        List<WatermarkTemplate> templates = new ArrayList<>();
+        for (PdfWatermarkSettings warmed : warmUpSettings(settings)) {
+            if (warmed.getOutputStrategy() == PdfWatermarkSettings.OutputStrategy.LINEARIZED) {
+                warmed.setOutputStrategy(PdfWatermarkSettings.OutputStrategy.REWRITE);
+            }
+            List<String> lines = warmed.getRenderMode() == PdfWatermarkSettings.RenderMode.REPLACEABLE_XOBJECT
+                    ? Collections.singletonList("WARM-UP") : Arrays.asList("WARM-UP", "{page} / {pages}");
+            templates.add(new WatermarkTemplate(lines, warmed, fontMetrics, imageCache));
+        }
+        byte[] document = warmUpDocument();
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean compilationMonitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+        long compilationStart = compilationMonitored ? compiler.getTotalCompilationTime() : -1;
+        long end = start + warmUpMaxDuration.toNanos();
+
+        int rounds = 0;
+        int stableRounds = 0;
+        long firstRound = 0;
+        long lastRound = 0;
+        long bestRound = Long.MAX_VALUE;
+        boolean converged = false;
+        while (System.nanoTime() < end) {
+            long roundStart = System.nanoTime();
+            for (WatermarkTemplate template : templates) {
+                stamp(new ByteArrayInputStream(document), OutputStream.nullOutputStream(), template);
+            }
+            lastRound = System.nanoTime() - roundStart;
+            if (rounds++ == 0) {
+                firstRound = lastRound;
+            }
+            if (lastRound < bestRound * (1 - WARM_UP_MIN_GAIN)) {
+                stableRounds = 0;
+            } else {
+                stableRounds++;
+            }
+            bestRound = Math.min(bestRound, lastRound);
+            if (rounds >= WARM_UP_MIN_ROUNDS && stableRounds >= WARM_UP_STABLE_ROUNDS) {
+                converged = true;
+                break;
+            }
+        }
+        WarmUpReport report = new WarmUpReport(System.nanoTime() - start, templates.size(), rounds, firstRound, lastRound,
+                compilationMonitored ? compiler.getTotalCompilationTime() - compilationStart : -1, converged);
+        LOGGER.info("Warm-up: {}", report);
+        warmUpReport = report;
+        return report;
+    }
+
+    /**
+     * @return copies of the settings, or the default settings at every position
+     */
+    private static List<PdfWatermarkSettings> warmUpSettings(PdfWatermarkSettings... settings) throws PdfException {
+        List<PdfWatermarkSettings> copies = new ArrayList<>();
+        if (settings == null || settings.length == 0) {
+            for (PdfWatermarkSettings.WatermarkPosition position : PdfWatermarkSettings.WatermarkPosition.values()) {
+                PdfWatermarkSettings defaults = new PdfWatermarkSettings(true);
+                defaults.setWatermarkPosition(position);
+                copies.add(defaults);
+            }
+            return copies;
+        }
+        for (PdfWatermarkSettings setting : settings) {
+            if (setting == null) {
+                throw new PdfException("Watermark settings must not be null");
+            }
+            copies.add(new PdfWatermarkSettings(setting));
+        }
+        return copies;
+    }
+
+    /**
+     * Small document with the page geometries met in production: portrait, landscape (rotated) and other sizes
+     */
+    private static byte[] warmUpDocument() throws PdfException {
+        Rectangle[] pageSizes = {PageSize.A4, PageSize.A4.rotate(), PageSize.LETTER, PageSize.A3};
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Document document = new Document(pageSizes[0]);
         try {
-            byte[]ownerPassword=null;
-            if (pdfEncryptionOwner!=null && !pdfEncryptionOwner.isEmpty()){
-                ownerPassword=pdfEncryptionOwner.getBytes();
+            PdfWriter.getInstance(document, output);
+            document.open();
+            for (int page = 0; page < pageSizes.length; page++) {
+                if (page > 0) {
+                    document.setPageSize(pageSizes[page]);
+                    document.newPage();
+                }
+                document.add(new Paragraph("Warm-up page " + (page + 1)));
             }
-            PdfReader reader = new PdfReader(input, ownerPassword);
-            PdfStamper pdfStamper = new PdfStamper(reader, output, '\0', true);
+            document.close();
+        } catch (DocumentException e) {
+            throw new PdfException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Runs {@link #warmUp(PdfWatermarkSettings...)} with the default settings when the Spring bean is initialized,
+     * if enabled by {@link #setWarmUpOnStartup(boolean)}
+     */
+    @Override
+    public void afterPropertiesSet() throws PdfException {
+        if (warmUpOnStartup) {
+            warmUp();
+        }
+    }
+
+    /**
+     * With a {@link MemoryBudget} the footprint is estimated from the length reported by the stream before it is read.
+     * A stream which does not fit into the budget is spooled to a temporary file under the SPOOL_TO_DISK policy.
+     */
+    public void stamp(InputStream input, OutputStream output, WatermarkTemplate watermarkTemplate) throws PdfException {
+        stamp(input, output, watermarkTemplate, StampDeadline.NONE);
+    }
+
+    public void stamp(InputStream input, OutputStream output, WatermarkTemplate watermarkTemplate, StampDeadline deadline) throws PdfException {
+        MemoryBudget budget = memoryBudget;
+        MemoryBudget.Reservation reservation = null;
+        if (budget != null) {
+            reservation = budget.acquire(MemoryBudget.estimateInMemory(streamLength(input, budget), 0), true);
+            if (reservation == null) {
+                stampSpooled(input, output, watermarkTemplate, deadline);
+                return;
+            }
+        }
+        try {
+            StampMetrics metrics = startMetrics(deadline);
+            // read into memory, but parsed partially: pages which are not stamped are not kept
+            PdfReader reader = openReader(() -> new PdfReader(new RandomAccessFileOrArray(input), getOwnerPassword()), metrics);
+            stamp(reader, output, watermarkTemplate, metrics);
+        } finally {
+            release(reservation);
+        }
+    }
+
+    /**
+     * Copies the stream to a temporary file and stamps it from there, memory-mapped
+     */
+    private void stampSpooled(InputStream input, OutputStream output, WatermarkTemplate watermarkTemplate, StampDeadline deadline) throws PdfException {
+        Path spool = null;
+        try {
+            spool = Files.createTempFile("pdfwatermark-", ".pdf");
+            Files.copy(input, spool, StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.debug("Memory budget exhausted, input spooled to {}", spool);
+            stamp(spool, Channels.newChannel(output), watermarkTemplate, deadline);
+        } catch (IOException e1) {
+            throw failure(startMetrics(StampDeadline.NONE), e1);
+        } finally {
+            if (spool != null) {
+                try {
+                    Files.deleteIfExists(spool);
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot delete the spool file " + spool, e);
+                }
+            }
+        }
+    }
+
+    private static long streamLength(InputStream input, MemoryBudget budget) {
+        try {
+            int available = input.available();
+            return available > 0 ? available : budget.getUnknownLength();
+        } catch (IOException e) {
+            return budget.getUnknownLength();
+        }
+    }
+
+    private static void release(MemoryBudget.Reservation reservation) {
+        if (reservation != null) {
+            reservation.close();
+        }
+    }
+
+    /**
+     * Reserves the estimated footprint of a document read into memory before it is parsed, the page count is not known yet
+     *
+     * @return the reservation, null when the service has no budget
+     */
+    private MemoryBudget.Reservation reserve(long length, StampMetrics metrics) throws PdfException {
+        MemoryBudget budget = memoryBudget;
+        if (budget == null) {
+            return null;
+        }
+        try {
+            return budget.acquire(MemoryBudget.estimateInMemory(length, 0), false);
+        } catch (PdfException e) {
+            stampListener.documentFailed(metrics, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Reserves the estimated footprint of an opened document, the reader is closed if the budget refuses the job
+     *
+     * @return the reservation, null when the service has no budget
+     */
+    private MemoryBudget.Reservation reserve(PdfReader reader, long bytes, StampMetrics metrics) throws PdfException {
+        MemoryBudget budget = memoryBudget;
+        if (budget == null) {
+            return null;
+        }
+        try {
+            return budget.acquire(bytes, false);
+        } catch (PdfException e) {
+            reader.close();
+            stampListener.documentFailed(metrics, e);
+            throw e;
+        }
+    }
+
+    public void stamp(Path input, Path output, List<String> lines, PdfWatermarkSettings settings) throws PdfException {
+        stamp(input, output, compile(lines, settings));
+    }
+
+    /**
+     * The input file is memory-mapped and read partially: only the cross-reference table, the trailer
+     * and the objects actually needed are parsed, the file is never loaded as a whole into the heap.
+     */
+    public void stamp(Path input, Path output, WatermarkTemplate watermarkTemplate) throws PdfException {
+        stampFile(input, output, watermarkTemplate, StampDeadline.NONE);
+    }
+
+    public void stamp(Path input, Path output, WatermarkTemplate watermarkTemplate, StampDeadline deadline) throws PdfException {
+        stampFile(input, output, watermarkTemplate, deadline);
+    }
+
+    /**
+     * Stamps the jobs on a pool of {@link #setBatchParallelism(int)} threads. At most {@link #setBatchQueueCapacity(int)} jobs
+     * wait for a thread, the submission blocks when the queue is full. A failing job does not stop the batch.
+     */
+    public BatchResult stampAll(Collection<WatermarkJob> jobs) throws PdfException {
+        final int parallelism = Math.max(1, batchParallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pdfwatermark-batch-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Semaphore slots = new Semaphore(parallelism + Math.max(0, batchQueueCapacity));
+        List<Future<WatermarkJobResult>> futures = new ArrayList<>(jobs.size());
+        List<WatermarkJobResult> results = new ArrayList<>(jobs.size());
+        long start = System.nanoTime();
+        try {
+            for (final WatermarkJob job : jobs) {
+                slots.acquire();
+                futures.add(executor.submit(new Callable<WatermarkJobResult>() {
+                    @Override
+                    public WatermarkJobResult call() {
+                        try {
+                            return runJob(job);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                }));
+            }
+            for (Future<WatermarkJobResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PdfException(e);
+        } catch (ExecutionException e) {
+            throw new PdfException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        BatchResult batchResult = new BatchResult(results, System.nanoTime() - start);
+        LOGGER.info("Batch finished: {}", batchResult);
+        return batchResult;
+    }
+
+    public CompletableFuture<Void> stampAsync(InputStream input, OutputStream output, List<String> lines, PdfWatermarkSettings settings) {
+        try {
+            return stampAsync(input, output, compile(lines, settings), asyncExecutor);
+        } catch (PdfException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<Void> stampAsync(InputStream input, OutputStream output, WatermarkTemplate template, Executor executor) {
+        StampDeadline deadline = StampDeadline.cancellable();
+        return cancelling(runAsync(() -> stamp(input, output, template, deadline), executor), deadline);
+    }
+
+    public CompletableFuture<Void> stampAsync(Path input, Path output, WatermarkTemplate template, Executor executor) {
+        StampDeadline deadline = StampDeadline.cancellable();
+        return cancelling(runAsync(() -> stamp(input, output, template, deadline), executor), deadline);
+    }
+
+    /**
+     * Trips the token when the future is cancelled
+     */
+    private static CompletableFuture<Void> cancelling(CompletableFuture<Void> future, StampDeadline deadline) {
+        future.whenComplete((ignored, failure) -> {
+            if (future.isCancelled()) {
+                deadline.cancel();
+            }
+        });
+        return future;
+    }
+
+    private CompletableFuture<Void> runAsync(final StampTask task, Executor executor) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                    future.complete(null);
+                } catch (PdfException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new PdfException(e));
+        }
+        return future;
+    }
+
+    /**
+     * Executor of {@link #stampAsync(InputStream, OutputStream, List, PdfWatermarkSettings)}, the common fork-join pool by default
+     */
+    public synchronized void setAsyncExecutor(Executor asyncExecutor) {
+        replaceAsyncExecutor(asyncExecutor, null);
+    }
+
+    /**
+     * Runs every asynchronous stamp on its own virtual thread (Java 21+), see {@link StampExecutors#newVirtualThreadPerTaskExecutor()}
+     */
+    public synchronized void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads) {
+            ExecutorService executor = StampExecutors.newVirtualThreadPerTaskExecutor();
+            replaceAsyncExecutor(executor, executor);
+        } else {
+            replaceAsyncExecutor(ForkJoinPool.commonPool(), null);
+        }
+    }
+
+    /**
+     * The executor created by the service is shut down once replaced, its running stamps complete;
+     * an executor set by the caller is left to the caller
+     */
+    private void replaceAsyncExecutor(Executor executor, ExecutorService owned) {
+        ExecutorService previous = ownedAsyncExecutor;
+        asyncExecutor = executor;
+        ownedAsyncExecutor = owned;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    public void setBatchParallelism(int batchParallelism) {
+        this.batchParallelism = batchParallelism;
+    }
+
+    public void setBatchQueueCapacity(int batchQueueCapacity) {
+        this.batchQueueCapacity = batchQueueCapacity;
+    }
+
+    private WatermarkJobResult runJob(WatermarkJob job) {
+        long start = System.nanoTime();
+        try {
+            WatermarkTemplate template = job.getTemplate() != null ? job.getTemplate() : compile(job.getLines(), job.getSettings());
+            int pages = stampFile(job.getInput(), job.getOutput(), template, StampDeadline.NONE);
+            return new WatermarkJobResult(job, pages, System.nanoTime() - start, null);
+        } catch (PdfException e) {
+            return new WatermarkJobResult(job, 0, System.nanoTime() - start, e);
+        } catch (RuntimeException e) {
+            LOGGER.error("Unexpected error when stamping " + job, e);
+            return new WatermarkJobResult(job, 0, System.nanoTime() - start, new PdfException(e));
+        }
+    }
+
+    public void stamp(Path input, WritableByteChannel output, WatermarkTemplate watermarkTemplate) throws PdfException {
+        stamp(input, output, watermarkTemplate, StampDeadline.NONE);
+    }
+
+    private void stamp(Path input, WritableByteChannel output, WatermarkTemplate watermarkTemplate, StampDeadline deadline) throws PdfException {
+        StampMetrics metrics = startMetrics(deadline);
+        PdfReader reader = openReader(input, metrics);
+        try {
+            stampToChannel(reader, output, watermarkTemplate, metrics);
+        } catch (IOException e1) {
+            reader.close();
+            throw failure(metrics, e1);
+        }
+    }
+
+    /**
+     * The document is written to a partial file next to the output and moved into place once stamped: a failed stamp
+     * leaves no output behind, in particular not the unwatermarked original copied first in append mode.
+     */
+    private int stampFile(Path input, Path output, WatermarkTemplate watermarkTemplate, StampDeadline deadline) throws PdfException {
+        StampMetrics metrics = startMetrics(deadline);
+        PdfReader reader = openReader(input, metrics);
+        Path partial = output.resolveSibling("." + output.getFileName() + "." + UUID.randomUUID() + ".part");
+        boolean stamped = false;
+        try {
+            int pages;
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                pages = stampToChannel(reader, out, watermarkTemplate, metrics);
+            }
+            moveIntoPlace(partial, output);
+            stamped = true;
+            return pages;
+        } catch (IOException e1) {
+            reader.close();
+            throw failure(metrics, e1);
+        } finally {
+            if (!stamped) {
+                deleteTemporary(partial);
+            }
+        }
+    }
+
+    private static void moveIntoPlace(Path partial, Path output) throws IOException {
+        try {
+            Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The stamper writes the whole document to the channel, in append mode the original bytes it reads from the mapped
+     * input followed by the incremental update. The original is not transferred separately: the stamper in append mode
+     * copies it in any case, a transfer ahead of it would only double the work.
+     */
+    private int stampToChannel(PdfReader reader, WritableByteChannel output, WatermarkTemplate watermarkTemplate,
+                               StampMetrics metrics) throws IOException, PdfException {
+        MemoryBudget.Reservation reservation = reserve(reader, MemoryBudget.estimateMapped(reader.getNumberOfPages()), metrics);
+        try {
+            // the stamper closes its output, the channel of the caller stays open
+            OutputStream stamperOutput = new PassthroughOutputStream(new BufferedOutputStream(Channels.newOutputStream(output)), 0);
+            int pages = stamp(reader, stamperOutput, watermarkTemplate, metrics);
+            stamperOutput.flush();
+            return pages;
+        } finally {
+            release(reservation);
+        }
+    }
+
+    public void stamp(ByteBuffer input, OutputStream output, List<String> lines, PdfWatermarkSettings settings) throws PdfException {
+        stamp(input, output, compile(lines, settings));
+    }
+
+    /**
+     * The content of a heap buffer is used in place when the buffer wraps a whole array, other buffers are copied once.
+     * The document is read partially.
+     */
+    public void stamp(ByteBuffer input, OutputStream output, WatermarkTemplate watermarkTemplate) throws PdfException {
+        StampMetrics metrics = startMetrics(StampDeadline.NONE);
+        MemoryBudget.Reservation reservation = reserve(input.remaining(), metrics);
+        try {
+            PdfReader reader = openReader(() -> new PdfReader(new RandomAccessFileOrArray(toByteArray(input)), getOwnerPassword()), metrics);
+            stamp(reader, output, watermarkTemplate, metrics);
+        } finally {
+            release(reservation);
+        }
+    }
+
+    public Flow.Publisher<ByteBuffer> stamp(Flow.Publisher<ByteBuffer> input, List<String> lines, PdfWatermarkSettings settings) throws PdfException {
+        return stamp(input, compile(lines, settings));
+    }
+
+    public Flow.Publisher<ByteBuffer> stamp(Flow.Publisher<ByteBuffer> input, WatermarkTemplate watermarkTemplate) {
+        final long threshold = streamingMemoryThreshold;
+        final Executor executor = asyncExecutor;
+        return new ByteBufferPublisher(publisher -> {
+            ByteBufferSpool spool = new ByteBufferSpool(threshold);
+            StampDeadline deadline = StampDeadline.cancellable();
+            publisher.onCancel(() -> {
+                spool.cancel();
+                deadline.cancel();
+            });
+            spool.getCompletion().whenComplete((received, error) -> {
+                if (error != null) {
+                    publisher.fail(error);
+                    return;
+                }
+                runAsync(() -> stampPublished(received, publisher, watermarkTemplate, deadline), executor).whenComplete((ignored, failure) -> {
+                    received.close();
+                    if (failure != null) {
+                        publisher.fail(failure);
+                    } else {
+                        publisher.complete();
+                    }
+                });
+            });
+            input.subscribe(spool);
+        });
+    }
+
+    /**
+     * A file received in memory is published in append mode as read-only views of the received array followed by
+     * the incremental update; a spooled file goes through the channel output, read memory-mapped.
+     */
+    private void stampPublished(ByteBufferSpool spool, ByteBufferPublisher publisher, WatermarkTemplate watermarkTemplate,
+                                StampDeadline deadline) throws PdfException {
+        OutputStream output = publisher.getOutputStream();
+        if (spool.getFile() != null) {
+            stamp(spool.getFile(), Channels.newChannel(output), watermarkTemplate, deadline);
+            try {
+                output.flush();
+            } catch (IOException e1) {
+                throw failure(startMetrics(deadline), e1);
+            }
+            return;
+        }
+        StampMetrics metrics = startMetrics(deadline);
+        byte[] bytes = spool.getBytes();
+        MemoryBudget.Reservation reservation = reserve(bytes.length, metrics);
+        try {
+            PdfReader reader = openReader(() -> new PdfReader(new RandomAccessFileOrArray(bytes), getOwnerPassword()), metrics);
+            try {
+                if (!isAppend(reader, watermarkTemplate.settings())) {
+                    stamp(reader, output, watermarkTemplate, metrics, null, false);
+                    output.flush();
+                    return;
+                }
+                publisher.publish(bytes);
+                OutputStream increment = new PassthroughOutputStream(output, bytes.length);
+                stamp(reader, increment, watermarkTemplate, metrics, null, true);
+                increment.flush();
+            } catch (IOException e1) {
+                reader.close();
+                throw failure(metrics, e1);
+            }
+        } finally {
+            release(reservation);
+        }
+    }
+
+    private PdfReader openReader(Path input, StampMetrics metrics) throws PdfException {
+        // not forced into memory, memory-mapped
+        return openReader(() -> new PdfReader(new RandomAccessFileOrArray(input.toString(), false, false), getOwnerPassword()), metrics);
+    }
+
+    private PdfReader openReader(ReaderSource source, StampMetrics metrics) throws PdfException {
+        long start = System.nanoTime();
+        PdfReader reader;
+        try {
+            metrics.getDeadline().check("parsing");
+            reader = source.open();
+        } catch (IOException e1) {
+            throw failure(metrics, e1);
+        } catch (StampCancelledException e) {
+            stampListener.documentFailed(metrics, e);
+            throw e;
+        } finally {
+            metrics.addStageNanos(StampMetrics.Stage.PARSE, System.nanoTime() - start);
+        }
+        try {
+            metrics.getDeadline().check("reading the pages");
+        } catch (StampCancelledException e) {
+            reader.close();
+            stampListener.documentFailed(metrics, e);
+            throw e;
+        }
+        return reader;
+    }
+
+    /**
+     * Measurements of a new document, announced to the listener
+     */
+    private StampMetrics startMetrics(StampDeadline deadline) {
+        StampMetrics metrics = new StampMetrics(deadline);
+        stampListener.documentStarted(metrics);
+        return metrics;
+    }
+
+    /**
+     * Logs the error, notifies the listener and returns the exception to be thrown
+     */
+    private PdfException failure(StampMetrics metrics, Exception e1) {
+        LOGGER.error(LOG_ERROR_ITEXT, e1);
+        PdfException exception = new PdfException(e1);
+        stampListener.documentFailed(metrics, exception);
+        return exception;
+    }
+
+    private byte[] toByteArray(ByteBuffer input) {
+        if (input.hasArray() && input.arrayOffset() == 0 && input.position() == 0 && input.remaining() == input.array().length) {
+            return input.array();
+        }
+        byte[] bytes = new byte[input.remaining()];
+        input.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private byte[] getOwnerPassword() {
+        byte[] ownerPassword = null;
+        if (pdfEncryptionOwner != null && !pdfEncryptionOwner.isEmpty()) {
+            ownerPassword = pdfEncryptionOwner.getBytes();
+        }
+        return ownerPassword;
+    }
+
+    /**
+     * Parses the input once into a master reader. Every variant stamps an in-memory duplicate of it
+     * (no parsing), reuses the page geometries read from the master and writes its incremental update
+     * after the shared original bytes (or the rewritten document, see {@link PdfWatermarkSettings.OutputStrategy}).
+     * The master is read into memory, the budget is reserved from the stream length before and cannot be spooled.
+     */
+    public void stampEach(InputStream input, List<List<String>> linesPerVariant, PdfWatermarkSettings settings,
+                          OutputStreamProvider outputs) throws PdfException {
+        WatermarkTemplate.validate(settings);
+        MemoryBudget budget = memoryBudget;
+        MemoryBudget.Reservation reservation = budget == null ? null
+                : budget.acquire(MemoryBudget.estimateInMemory(streamLength(input, budget), 0), false);
+        PdfReader master = null;
+        try {
+            // not a stamped document itself, only a failure to read it is reported
+            StampMetrics masterMetrics = new StampMetrics();
+            master = openReader(() -> new PdfReader(RandomAccessFileOrArray.InputStreamToArray(input), getOwnerPassword()), masterMetrics);
+            int numPages = master.getNumberOfPages();
+            PageGeometry[] geometries = new PageGeometry[numPages];
+            for (int pageNumber = 1; pageNumber <= numPages; pageNumber++) {
+                geometries[pageNumber - 1] = PageGeometry.of(master, pageNumber, settings.getWatermarkPosition());
+            }
+            PageSelection.LazyGeometry pageGeometry = page -> geometries[page - 1];
+            boolean append = isAppend(master, settings);
+
+            for (int index = 0; index < linesPerVariant.size(); index++) {
+                List<String> lines = linesPerVariant.get(index);
+                WatermarkTemplate template = compile(lines, settings);
+                StampMetrics metrics = startMetrics(StampDeadline.NONE);
+                long start = System.nanoTime();
+                PdfReader copy = new PdfReader(master);
+                metrics.addStageNanos(StampMetrics.Stage.PARSE, System.nanoTime() - start);
+                OutputStream output;
+                try {
+                    output = outputs.open(index, lines);
+                } catch (IOException e1) {
+                    copy.close();
+                    throw failure(metrics, e1);
+                }
+                try {
+                    stamp(copy, output, template, metrics, pageGeometry, append);
+                } finally {
+                    // already closed by the stamper unless the variant failed
+                    closeQuietly(output);
+                }
+            }
+        } finally {
+            release(reservation);
+            if (master != null) {
+                master.close();
+            }
+        }
+    }
+
+    private int stamp(PdfReader reader, OutputStream output, WatermarkTemplate watermarkTemplate, StampMetrics metrics) throws PdfException {
+        return stamp(reader, output, watermarkTemplate, metrics, null, isAppend(reader, watermarkTemplate.settings()));
+    }
+
+    /**
+     * @param knownGeometry geometry of the pages when already known, null to read it from the reader
+     * @param append        true to write an incremental update, false to rewrite the document with full compression
+     * @return number of stamped pages
+     */
+    private int stamp(PdfReader reader, OutputStream output, WatermarkTemplate watermarkTemplate, StampMetrics metrics,
+                      PageSelection.LazyGeometry knownGeometry, boolean append) throws PdfException {
+        PdfWatermarkSettings settings = watermarkTemplate.settings();
+        CountingOutputStream countingOutput = new CountingOutputStream(output);
+        boolean linearized = !append && settings.getOutputStrategy() == PdfWatermarkSettings.OutputStrategy.LINEARIZED;
+        Path unlinearized = null;
+        OutputStream stamperOutput = countingOutput;
+        try {
+            if (settings.isIdempotent() && isAlreadyStamped(reader, watermarkTemplate)) {
+                copyThrough(reader, countingOutput, metrics);
+                return 0;
+            }
+            StampDeadline deadline = metrics.getDeadline();
+            deadline.check("creating the stamper");
+            long start = System.nanoTime();
+            if (linearized) {
+                // the linearizer needs the whole rewritten file, it is written to the system temporary directory
+                unlinearized = Files.createTempFile("pdfwatermark-", ".pdf");
+                stamperOutput = new BufferedOutputStream(Files.newOutputStream(unlinearized));
+            }
+            PdfStamper pdfStamper = new PdfStamper(reader, stamperOutput, '\0', append);
+            if (!append) {
+                pdfStamper.setFullCompression();
+            }
+            long now = System.nanoTime();
+            metrics.addStageNanos(StampMetrics.Stage.SERIALIZE, now - start);
+
+            int numPages = reader.getNumberOfPages();
+
+            // XObjects of this document, keyed by the page geometry they were drawn for
+            Map<PageGeometry, PdfTemplate> templates = new HashMap<>();
+            Map<PageGeometry, PdfPatternPainter> patterns = new HashMap<>();
+            int cacheHits = 0;
+            int cacheMisses = 0;
 
-            int numPages = reader.getNumberOfPages();
+            // one graphic state shared by all the pages of the document
+            PdfGState gState = createGState(settings);
 
-            // Temporary variables used to check if the configuration page has been changed. If so, we need to calculate the new variables for the page
-            int lastWidth = -1;
-            int lastHeight = -1;
-            InternalWatermarkVariables previousVariables = null;
+            // tokens are resolved per page, a watermark changing from page to page cannot be shared
+            PageText pageText = new PageText(watermarkTemplate, numPages);
+            boolean replaceable = settings.getRenderMode() == PdfWatermarkSettings.RenderMode.REPLACEABLE_XOBJECT;
+            boolean sharedTemplates = replaceable || settings.getRenderMode() == PdfWatermarkSettings.RenderMode.SHARED_XOBJECT
+                    && !watermarkTemplate.isPageDependent();
+            ReplaceableWatermark replaceableWatermark = new ReplaceableWatermark();
+            PdfLayer layer = null;
 
-            for (int pageNumber = 1; pageNumber <= numPages; pageNumber++) {
-                InternalWatermarkVariables variables = new InternalWatermarkVariables(pageNumber);
+            PageSelection pageSelection = settings.getEffectivePageSelection();
+            PageSelection.LazyGeometry pageGeometry = knownGeometry != null ? knownGeometry
+                    : page -> PageGeometry.of(reader, page, settings.getWatermarkPosition());
 
-                setDefaultWidthAndHeightFromPage(reader, variables);
-                if (previousVariables != null && variables.getPageHeight() == lastHeight && variables.getPageWidth() == lastWidth) {
-                    variables = previousVariables;
-                    variables.setPageNumber(pageNumber);
+            int stampedPages = 0;
+            for (int pageNumber = 1; pageNumber <= numPages; pageNumber++) {
+                // page numbers are checked first, the page itself is read only if it is selected or if a selection rule needs it
+                if (!pageSelection.selects(pageNumber, numPages, pageGeometry)) {
+                    continue;
+                }
+                // the stamper is dropped without being closed, nothing more is written
+                deadline.checkPage(pageNumber);
+                stampedPages++;
+                start = System.nanoTime();
+                PageGeometry geometry = pageGeometry.get(pageNumber);
+                WatermarkLayout layout = watermarkTemplate.getLayout(geometry);
+                if (layout == null) {
+                    cacheMisses++;
+                    layout = computeLayout(geometry, watermarkTemplate);
+                    watermarkTemplate.putLayout(layout);
                 } else {
-                    setPageDiagonalLength(variables, settings.getWatermarkPosition());
-                    setPhrases(variables, settings, lines);
-                    setCalculatedVariables(variables, settings);
+                    cacheHits++;
                 }
+                now = System.nanoTime();
+                metrics.addStageNanos(StampMetrics.Stage.LAYOUT, now - start);
+                start = now;
 
-
-                writeText(pdfStamper, settings, variables);
-                previousVariables = variables;
-                lastWidth = variables.getPageWidth();
-                lastHeight = variables.getPageHeight();
+                pageText.setPage(pageNumber);
+                if (sharedTemplates) {
+                    PdfTemplate template = templates.get(geometry);
+                    if (template == null) {
+                        template = createTemplate(pdfStamper, settings, layout, gState, pageText, watermarkTemplate.getImage());
+                        templates.put(geometry, template);
+                        if (replaceable) {
+                            if (layer == null) {
+                                layer = new PdfLayer(ReplaceableWatermark.LAYER_NAME, pdfStamper.getWriter());
+                            }
+                            template.setLayer(layer);
+                            replaceableWatermark.add(template, geometry);
+                        }
+                    }
+                    getCanvas(pdfStamper, settings, pageNumber).addTemplate(template, 0, 0);
+                } else {
+                    PdfContentByte canvas = getCanvas(pdfStamper, settings, pageNumber);
+                    canvas.setGState(gState);
+                    drawImage(canvas, watermarkTemplate.getImage(), layout);
+                    if (layout.isTiled()) {
+                        PdfPatternPainter pattern = patterns.get(geometry);
+                        if (pattern == null) {
+                            pattern = createPattern(canvas, settings, layout, pageText, true);
+                            if (!watermarkTemplate.isPageDependent()) {
+                                patterns.put(geometry, pattern);
+                            }
+                        }
+                        fillTiles(canvas, pattern, layout);
+                    } else {
+                        writeText(canvas, settings, layout, pageText);
+                    }
+                }
+                now = System.nanoTime();
+                metrics.addStageNanos(StampMetrics.Stage.RENDER, now - start);
 
                 if (pageNumber==1 && settings.isFirstPageOnly()){
                     break;
                 }
             }
+            layoutCacheHits.addAndGet(cacheHits);
+            layoutCacheMisses.addAndGet(cacheMisses);
+            LOGGER.debug("Layout cache: {} hits, {} misses", cacheHits, cacheMisses);
 
-            if (settings.getInfos()!=null) {
-                HashMap<String, String> info = new HashMap<>(reader.getInfo());
-                for (Map.Entry<String , String> entry : settings.getInfos().entrySet()){
-                    info.put(entry.getKey(), entry.getValue());
+            deadline.check("writing the output");
+            start = System.nanoTime();
+
+            if (!replaceableWatermark.isEmpty()) {
+                if (append) {
+                    ReplaceableWatermark.addToCatalog(pdfStamper, reader, layer);
                 }
-                pdfStamper.setMoreInfo(info);
+                setInfo(pdfStamper, reader, watermarkTemplate, Collections.singletonMap(ReplaceableWatermark.INFO_KEY, replaceableWatermark.format()));
+            } else {
+                setInfo(pdfStamper, reader, watermarkTemplate, Collections.<String, String>emptyMap());
             }
 
             pdfStamper.close();
+            if (linearized) {
+                deadline.check("linearizing");
+                linearize(unlinearized, countingOutput);
+            }
+            metrics.addStageNanos(StampMetrics.Stage.SERIALIZE, System.nanoTime() - start);
+
+            metrics.setBytesIn(reader.getFileLength());
+            metrics.setBytesOut(countingOutput.getCount());
+            metrics.setPages(numPages);
+            metrics.setStampedPages(stampedPages);
+            metrics.setLayoutCache(cacheHits, cacheMisses);
+            stampListener.documentStamped(metrics);
+            return stampedPages;
+        } catch (DocumentException | IOException e1) {
+            throw failure(metrics, e1);
+        } catch (PdfException e) {
+            stampListener.documentFailed(metrics, e);
+            throw e;
+        } finally {
             reader.close();
+            if (unlinearized != null) {
+                closeQuietly(stamperOutput);
+                deleteTemporary(unlinearized);
+            }
+        }
+    }
+
+    /**
+     * Linearizes the rewritten document with the configured {@link PdfLinearizer} and copies the result to the output
+     */
+    private void linearize(Path unlinearized, OutputStream output) throws IOException {
+        Path linearized = unlinearized.resolveSibling(unlinearized.getFileName() + ".linearized");
+        try {
+            linearizer.linearize(unlinearized, linearized);
+            Files.copy(linearized, output);
+        } finally {
+            deleteTemporary(linearized);
+            // closed as the stamper closes the output with the other strategies
+            output.close();
+        }
+    }
+
+    private static void closeQuietly(OutputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            LOGGER.debug("Cannot close the output", e);
+        }
+    }
+
+    private static void deleteTemporary(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot delete the temporary file " + file, e);
+        }
+    }
+
+    /**
+     * Merges the infos of the settings, the marker of the watermark and the given entries into the document information
+     */
+    private static void setInfo(PdfStamper pdfStamper, PdfReader reader, WatermarkTemplate watermarkTemplate, Map<String, String> entries) {
+        PdfWatermarkSettings settings = watermarkTemplate.settings();
+        if (settings.getInfos()!=null || settings.isIdempotent() || !entries.isEmpty()) {
+            HashMap<String, String> info = new HashMap<>(reader.getInfo());
+            if (settings.getInfos() != null) {
+                for (Map.Entry<String, String> entry : settings.getInfos().entrySet()) {
+                    info.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (settings.isIdempotent()) {
+                info.put(WatermarkTemplate.MARKER_KEY, watermarkTemplate.getFingerprint());
+            }
+            info.putAll(entries);
+            pdfStamper.setMoreInfo(info);
+        }
+    }
+
+    public void replaceWatermark(InputStream input, OutputStream output, List<String> lines, PdfWatermarkSettings settings) throws PdfException {
+        replaceWatermark(input, output, compile(lines, settings));
+    }
+
+    /**
+     * Each recorded XObject is rewritten under its own object number as a form drawing a new XObject with the new watermark.
+     * The previous watermark stays in the file, unreferenced.
+     */
+    public void replaceWatermark(InputStream input, OutputStream output, WatermarkTemplate watermarkTemplate) throws PdfException {
+        replaceWatermark(input, output, watermarkTemplate, StampDeadline.NONE);
+    }
+
+    public void replaceWatermark(InputStream input, OutputStream output, WatermarkTemplate watermarkTemplate, StampDeadline deadline) throws PdfException {
+        StampMetrics metrics = startMetrics(deadline);
+        MemoryBudget budget = memoryBudget;
+        MemoryBudget.Reservation reservation = reserve(budget == null ? 0 : streamLength(input, budget), metrics);
+        PdfReader reader;
+        try {
+            reader = openReader(() -> new PdfReader(new RandomAccessFileOrArray(input), getOwnerPassword()), metrics);
+        } catch (PdfException e) {
+            release(reservation);
+            throw e;
+        }
+        PdfWatermarkSettings settings = watermarkTemplate.settings();
+        CountingOutputStream countingOutput = new CountingOutputStream(output);
+        try {
+            String record = reader.getInfo().get(ReplaceableWatermark.INFO_KEY);
+            if (record == null) {
+                throw new PdfException("The document has no replaceable watermark, it was not stamped with the REPLACEABLE_XOBJECT render mode");
+            }
+            if (watermarkTemplate.isPageDependent()) {
+                throw new PdfException("Page number tokens cannot be used in a replaced watermark");
+            }
+            ReplaceableWatermark previous = ReplaceableWatermark.parse(record, settings.getWatermarkPosition());
+
+            deadline.check("creating the stamper");
+            long start = System.nanoTime();
+            PdfStamper pdfStamper = new PdfStamper(reader, countingOutput, '\0', true);
+            PdfWriter writer = pdfStamper.getWriter();
+            long now = System.nanoTime();
+            metrics.addStageNanos(StampMetrics.Stage.SERIALIZE, now - start);
+
+            PdfGState gState = createGState(settings);
+            PageText pageText = new PageText(watermarkTemplate, reader.getNumberOfPages());
+            // never written itself, drawing the new XObjects into it registers them with the writer
+            PdfTemplate registry = PdfTemplate.createTemplate(writer, 1, 1);
+            for (Map.Entry<Integer, PageGeometry> entry : previous.getXObjects().entrySet()) {
+                // the stamper is dropped without being closed, nothing more is written
+                deadline.check("rewriting the watermark object " + entry.getKey());
+                start = System.nanoTime();
+                WatermarkLayout layout = watermarkTemplate.getLayout(entry.getValue());
+                if (layout == null) {
+                    layout = computeLayout(entry.getValue(), watermarkTemplate);
+                    watermarkTemplate.putLayout(layout);
+                }
+                now = System.nanoTime();
+                metrics.addStageNanos(StampMetrics.Stage.LAYOUT, now - start);
+                start = now;
+
+                PdfTemplate content = createTemplate(pdfStamper, settings, layout, gState, pageText, watermarkTemplate.getImage());
+                registry.addTemplate(content, 0, 0);
+                PdfObject recorded = reader.getPdfObject(entry.getKey());
+                if (!(recorded instanceof PdfDictionary)) {
+                    throw new PdfException("Recorded watermark object " + entry.getKey() + " not found");
+                }
+                writer.addToBody(ReplaceableWatermark.replacement(content, (PdfDictionary) recorded, writer.getCompressionLevel()), entry.getKey());
+                metrics.addStageNanos(StampMetrics.Stage.RENDER, System.nanoTime() - start);
+            }
+
+            deadline.check("writing the output");
+            start = System.nanoTime();
+            setInfo(pdfStamper, reader, watermarkTemplate, Collections.singletonMap(ReplaceableWatermark.INFO_KEY, record));
+            pdfStamper.close();
+            metrics.addStageNanos(StampMetrics.Stage.SERIALIZE, System.nanoTime() - start);
+
+            metrics.setBytesIn(reader.getFileLength());
+            metrics.setBytesOut(countingOutput.getCount());
+            metrics.setPages(reader.getNumberOfPages());
+            stampListener.documentStamped(metrics);
         } catch (DocumentException | IOException e1) {
-            LOGGER.error("Error (from Itext) when working with watermarking", e1);
-            throw new PdfException(e1);
+            throw failure(metrics, e1);
+        } catch (PdfException e) {
+            stampListener.documentFailed(metrics, e);
+            throw e;
+        } finally {
+            reader.close();
+            release(reservation);
+        }
+    }
+
+    /**
+     * Only the trailer and the document information are read, no page
+     */
+    private static boolean isAlreadyStamped(PdfReader reader, WatermarkTemplate watermarkTemplate) {
+        return watermarkTemplate.getFingerprint().equals(reader.getInfo().get(WatermarkTemplate.MARKER_KEY));
+    }
+
+    /**
+     * Writes the input unchanged and closes the output, for a document which already carries the same watermark.
+     * Behind a {@link PassthroughOutputStream} the copy is dropped, the original bytes were already transferred.
+     */
+    private void copyThrough(PdfReader reader, OutputStream output, StampMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        RandomAccessFileOrArray file = reader.getSafeFile();
+        file.reOpen();
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = file.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            file.close();
+        }
+        // closed as the stamper closes the output of a stamped document, the caller cannot tell which path ran
+        output.close();
+        metrics.addStageNanos(StampMetrics.Stage.SERIALIZE, System.nanoTime() - start);
+        metrics.setAlreadyStamped(true);
+        metrics.setBytesIn(reader.getFileLength());
+        metrics.setBytesOut(reader.getFileLength());
+        metrics.setPages(reader.getNumberOfPages());
+        LOGGER.debug("Document already stamped with the same watermark, copied through");
+        stampListener.documentStamped(metrics);
+    }
+
+    /**
+     * Resolves the output strategy of the settings for the given document
+     *
+     * @return true to write an incremental update, false to rewrite the document
+     */
+    private boolean isAppend(PdfReader reader, PdfWatermarkSettings settings) {
+        switch (settings.getOutputStrategy()) {
+            case REWRITE:
+            case LINEARIZED:
+                return false;
+            case AUTO:
+                if (reader.getFileLength() <= AUTO_REWRITE_MAX_BYTES) {
+                    return false;
+                }
+                try {
+                    return countIncrementalUpdates(reader) < AUTO_REWRITE_MIN_UPDATES;
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot count the incremental updates, document is appended", e);
+                    return true;
+                }
+            case APPEND:
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Number of incremental updates of the document: end-of-file markers after the first one.
+     * The file is scanned only when the last trailer points to a previous cross-reference section.
+     */
+    static int countIncrementalUpdates(PdfReader reader) throws IOException {
+        if (reader.getTrailer() == null || reader.getTrailer().get(PdfName.PREV) == null) {
+            return 0;
+        }
+        RandomAccessFileOrArray file = reader.getSafeFile();
+        file.reOpen();
+        try {
+            byte[] buffer = new byte[65536];
+            int matched = 0;
+            int markers = 0;
+            int read;
+            while ((read = file.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == EOF_MARKER[matched]) {
+                        if (++matched == EOF_MARKER.length) {
+                            markers++;
+                            matched = 0;
+                        }
+                    } else {
+                        // "%%%EOF": a third '%' keeps the two last ones matched
+                        matched = buffer[i] == '%' ? (matched == 2 ? 2 : 1) : 0;
+                    }
+                }
+            }
+            return Math.max(markers - 1, 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Number of pages (since the service was created) which reused a layout already computed for the same page geometry
+     */
+    public long getLayoutCacheHits() {
+        return layoutCacheHits.get();
+    }
+
+    /**
+     * Number of pages (since the service was created) which required a new layout computation
+     */
+    public long getLayoutCacheMisses() {
+        return layoutCacheMisses.get();
+    }
+
+    /**
+     * Listener receiving the measurements of every stamped document, {@link StampListener#NO_OP} by default
+     */
+    public void setStampListener(StampListener stampListener) {
+        this.stampListener = stampListener == null ? StampListener.NO_OP : stampListener;
+    }
+
+    /**
+     * Global budget of the estimated heap footprint of the running jobs, none by default
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the budget (with its usage and queue depth), null if none is set
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Length above which an input received by {@link #stamp(Flow.Publisher, WatermarkTemplate)} is spooled to a temporary file
+     * instead of being kept in memory, 16 MB by default
+     */
+    public void setStreamingMemoryThreshold(long streamingMemoryThreshold) {
+        this.streamingMemoryThreshold = Math.min(streamingMemoryThreshold, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Warms the service up when the Spring bean is initialized, enabled by the {@code pdfwatermark.warmUpOnStartup} property
+     */
+    @Value("${pdfwatermark.warmUpOnStartup:false}")
+    public void setWarmUpOnStartup(boolean warmUpOnStartup) {
+        this.warmUpOnStartup = warmUpOnStartup;
+    }
+
+    /**
+     * Duration after which the warm-up stops even if the stamping still gets faster, 10 seconds by default
+     */
+    public void setWarmUpMaxDuration(Duration warmUpMaxDuration) {
+        this.warmUpMaxDuration = warmUpMaxDuration;
+    }
+
+    /**
+     * @return the report of the last warm-up, null before the first one, e.g. for a readiness probe
+     */
+    public WarmUpReport getWarmUpReport() {
+        return warmUpReport;
+    }
+
+    /**
+     * Linearizer used by {@link PdfWatermarkSettings.OutputStrategy#LINEARIZED}, {@link QpdfLinearizer} by default
+     */
+    public void setLinearizer(PdfLinearizer linearizer) {
+        this.linearizer = linearizer;
+    }
+
+    /**
+     * Maximum number of compiled watermarks kept by {@link #compile(List, PdfWatermarkSettings)}, least recently used are dropped first
+     */
+    public void setTemplateCacheSize(int templateCacheSize) {
+        this.templateCacheSize = templateCacheSize;
+    }
+
+    private WatermarkLayout computeLayout(PageGeometry geometry, WatermarkTemplate template) throws PdfException {
+        InternalWatermarkVariables variables = new InternalWatermarkVariables();
+        setDefaultWidthAndHeightFromPage(geometry, variables);
+        // an image alone: there is no text to lay out
+        if (!template.getLines().isEmpty()) {
+            setPageDiagonalLength(variables, template.settings().getWatermarkPosition());
+            setPhrases(variables, template);
+            setCalculatedVariables(variables, template.settings());
+            if (template.settings().getWatermarkPosition() == PdfWatermarkSettings.WatermarkPosition.TILED) {
+                setTileSize(variables, template);
+            }
+        }
+        float[] imageMatrix = template.getImage() == null ? null : computeImageMatrix(geometry, template.getImage(), template.settings());
+        return new WatermarkLayout(geometry, variables, imageMatrix);
+    }
+
+    /**
+     * Places the image on the (rotated) page: centered and turned along the diagonal, at the top or bottom edge
+     * following the align, or in a corner. The image is scaled down to fit the page.
+     *
+     * @return transformation matrix (a, b, c, d, e, f) mapping the unit square to the image
+     */
+    static float[] computeImageMatrix(PageGeometry geometry, Image image, PdfWatermarkSettings settings) throws PdfException {
+        float pageWidth = geometry.getDisplayWidth();
+        float pageHeight = geometry.getDisplayHeight();
+        float width = image.getWidth() * settings.getImageScale();
+        float height = image.getHeight() * settings.getImageScale();
+        float fit = Math.min(1f, Math.min(pageWidth / width, pageHeight / height));
+        width *= fit;
+        height *= fit;
+
+        float x;
+        float y;
+        switch (settings.getWatermarkPosition()) {
+            case DIAGONAL:
+                double angle = Math.atan2(pageHeight, pageWidth);
+                float cos = (float) Math.cos(angle);
+                float sin = (float) Math.sin(angle);
+                float a = width * cos;
+                float b = width * sin;
+                float c = -height * sin;
+                float d = height * cos;
+                return new float[]{a, b, c, d, (pageWidth - a - c) / 2, (pageHeight - b - d) / 2};
+            case TILED:
+                x = (pageWidth - width) / 2;
+                y = (pageHeight - height) / 2;
+                break;
+            case TOP:
+            case BOTTOM:
+                switch (settings.getAlign()) {
+                    case ALIGN_LEFT:
+                        x = 0;
+                        break;
+                    case ALIGN_RIGHT:
+                        x = pageWidth - width;
+                        break;
+                    case ALIGN_CENTER:
+                    default:
+                        x = (pageWidth - width) / 2;
+                        break;
+                }
+                y = settings.getWatermarkPosition() == PdfWatermarkSettings.WatermarkPosition.TOP ? pageHeight - height : 0;
+                break;
+            case LEFT_TOP:
+                x = 0;
+                y = pageHeight - height;
+                break;
+            case LEFT_BOTTOM:
+                x = 0;
+                y = 0;
+                break;
+            case RIGHT_TOP:
+                x = pageWidth - width;
+                y = pageHeight - height;
+                break;
+            case RIGHT_BOTTOM:
+                x = pageWidth - width;
+                y = 0;
+                break;
+            default:
+                LOGGER.error(LOG_ERROR_WATERMARK_POSITION_NOT_FOUND);
+                throw new PdfException(LOG_ERROR_WATERMARK_POSITION_NOT_FOUND);
+        }
+        return new float[]{width, 0, 0, height, x, y};
+    }
+
+    /**
+     * The image is written once into the document as an XObject, every placement references it
+     */
+    private static void drawImage(PdfContentByte canvas, Image image, WatermarkLayout layout) throws DocumentException {
+        if (image != null) {
+            float[] m = layout.getImageMatrix();
+            canvas.addImage(image, m[0], m[1], m[2], m[3], m[4], m[5]);
+        }
+    }
+
+    /**
+     * Draws the watermark once into a Form XObject of the size of the (rotated) page.
+     * Every page with the same geometry references it with a single Do operator.
+     */
+    private PdfTemplate createTemplate(PdfStamper pdfStamper, PdfWatermarkSettings settings,
+                                       WatermarkLayout layout, PdfGState gState, PageText pageText, Image image) throws DocumentException {
+        PageGeometry geometry = layout.getGeometry();
+        PdfTemplate template = PdfTemplate.createTemplate(pdfStamper.getWriter(), geometry.getDisplayWidth(), geometry.getDisplayHeight());
+        template.setGState(gState);
+        drawImage(template, image, layout);
+        if (layout.isTiled()) {
+            fillTiles(template, createPattern(template, settings, layout, pageText, false), layout);
+        } else {
+            writeText(template, settings, layout, pageText);
+        }
+        return template;
+    }
+
+    /**
+     * Lays the lines out once into a cell, the tiling pattern repeats it.
+     *
+     * @param pageSpace true when the pattern fills the page content directly: the pattern space is then the default
+     *                  space of the page, not rotated by the stamper like the content, the rotation is added to the matrix
+     */
+    private PdfPatternPainter createPattern(PdfContentByte canvas, PdfWatermarkSettings settings, WatermarkLayout layout,
+                                            PageText pageText, boolean pageSpace) {
+        float tileWidth = layout.getTileWidth();
+        float tileHeight = layout.getTileHeight();
+        PdfPatternPainter pattern = canvas.createPattern(tileWidth, tileHeight);
+        float spacing = settings.getTileSpacing();
+        float x;
+        switch (settings.getAlign()) {
+            case ALIGN_LEFT:
+                x = spacing / 2;
+                break;
+            case ALIGN_RIGHT:
+                x = tileWidth - spacing / 2;
+                break;
+            case ALIGN_CENTER:
+            default:
+                x = tileWidth / 2;
+                break;
+        }
+        float y = tileHeight - spacing / 2;
+        for (int i = 0; i < layout.getPhrases().size(); i++) {
+            Phrase phrase = pageText.phrase(layout, i);
+            y -= lineAdvance(phrase.getFont().getSize(), settings);
+            ColumnText.showTextAligned(pattern, settings.getAlign().getElementAlign(), phrase, x, y, 0);
+        }
+
+        PageGeometry geometry = layout.getGeometry();
+        double angle = Math.toRadians(layout.getAngle());
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        // a cell centered on the page
+        float[] matrix = {cos, sin, -sin, cos,
+                geometry.getDisplayWidth() / 2 - (cos * tileWidth - sin * tileHeight) / 2,
+                geometry.getDisplayHeight() / 2 - (sin * tileWidth + cos * tileHeight) / 2};
+        if (pageSpace) {
+            matrix = multiply(matrix, rotation(geometry));
+        }
+        pattern.setPatternMatrix(matrix[0], matrix[1], matrix[2], matrix[3], matrix[4], matrix[5]);
+        return pattern;
+    }
+
+    /**
+     * Fills the whole (rotated) page with the pattern: a constant content whatever the number of cells
+     */
+    private static void fillTiles(PdfContentByte canvas, PdfPatternPainter pattern, WatermarkLayout layout) {
+        canvas.saveState();
+        canvas.setPatternFill(pattern);
+        canvas.rectangle(0, 0, layout.getGeometry().getDisplayWidth(), layout.getGeometry().getDisplayHeight());
+        canvas.fill();
+        canvas.restoreState();
+    }
+
+    /**
+     * Transformation applied by the stamper to the content of a rotated page, from the displayed page to the page space
+     */
+    private static float[] rotation(PageGeometry geometry) {
+        float width = geometry.getDisplayWidth();
+        float height = geometry.getDisplayHeight();
+        switch (geometry.getRotation()) {
+            case ANGLE_90:
+                return new float[]{0, 1, -1, 0, height, 0};
+            case ANGLE_180:
+                return new float[]{-1, 0, 0, -1, width, height};
+            case ANGLE_270:
+                return new float[]{0, -1, 1, 0, 0, width};
+            default:
+                return new float[]{1, 0, 0, 1, 0, 0};
+        }
+    }
+
+    /**
+     * @return the transformation m1 followed by m2
+     */
+    private static float[] multiply(float[] m1, float[] m2) {
+        return new float[]{
+                m1[0] * m2[0] + m1[1] * m2[2], m1[0] * m2[1] + m1[1] * m2[3],
+                m1[2] * m2[0] + m1[3] * m2[2], m1[2] * m2[1] + m1[3] * m2[3],
+                m1[4] * m2[0] + m1[5] * m2[2] + m2[4], m1[4] * m2[1] + m1[5] * m2[3] + m2[5]};
+    }
+
+    /**
+     * Size of a cell of the TILED position: the widest line (with the widest values of its tokens) and the lines
+     * with their fitted fonts, plus the spacing
+     */
+    void setTileSize(InternalWatermarkVariables variables, WatermarkTemplate template) {
+        PdfWatermarkSettings settings = template.settings();
+        float width = 0;
+        float height = 0;
+        for (int i = 0; i < variables.getPhrases().size(); i++) {
+            float size = variables.getPhrases().get(i).getFont().getSize();
+            width = Math.max(width, template.getUnitWidth(i) * size);
+            height += lineAdvance(size, settings);
         }
+        // descenders of the last line
+        height += variables.getPhrases().get(variables.getPhrases().size() - 1).getFont().getSize() / UNDERLINED_FONT_ADDSPACE_DIVSOR;
+        variables.setTileWidth(width + settings.getTileSpacing());
+        variables.setTileHeight(height + settings.getTileSpacing());
+    }
+
+    /**
+     * Distance between the baselines of two lines, with the additional space of the underline
+     */
+    private static float lineAdvance(float fontSize, PdfWatermarkSettings settings) {
+        return fontSize + (settings.getFontStyle() == PdfWatermarkSettings.FontStyle.UNDERLINE ? (float) Math.ceil(fontSize / UNDERLINED_FONT_ADDSPACE_DIVSOR) : 0);
     }
 
-    private void writeText(PdfStamper pdfStamper, PdfWatermarkSettings settings, InternalWatermarkVariables variables) {
-        PdfContentByte canvas = getCanvas(pdfStamper, settings, variables.getPageNumber());
+    private void writeText(PdfContentByte canvas, PdfWatermarkSettings settings, WatermarkLayout layout, PageText pageText) {
 
-        if (variables.getAngle() == 0) {
-            for (int i = 0; i < variables.getPhrases().size(); i++) {
-                Phrase phrase = variables.getPhrases().get(i);
+        if (layout.getAngle() == 0) {
+            for (int i = 0; i < layout.getPhrases().size(); i++) {
+                Phrase phrase = pageText.phrase(layout, i);
                 ColumnText.showTextAligned(canvas, settings.getAlign().getElementAlign(), phrase,
-                        variables.getPageWidth(),
-                        variables.getPageHeight() - i * phrase.getFont().getSize(),
-                        variables.getAngle());
+                        layout.getPageWidth(),
+                        layout.getPageHeight() - i * phrase.getFont().getSize(),
+                        layout.getAngle());
             }
-        } else if (variables.getAngle() == ANGLE_270) {
-            for (int i = 0; i < variables.getPhrases().size(); i++) {
-                Phrase phrase = variables.getPhrases().get(i);
+        } else if (layout.getAngle() == ANGLE_270) {
+            for (int i = 0; i < layout.getPhrases().size(); i++) {
+                Phrase phrase = pageText.phrase(layout, i);
                 ColumnText.showTextAligned(canvas, settings.getAlign().getElementAlign(), phrase,
-                        variables.getPageWidth() - i * phrase.getFont().getSize(),
-                        variables.getPageHeight(),
-                        variables.getAngle());
+                        layout.getPageWidth() - i * phrase.getFont().getSize(),
+                        layout.getPageHeight(),
+                        layout.getAngle());
             }
-        } else if (variables.getAngle() == ANGLE_90) {
-            for (int i = 0; i < variables.getPhrases().size(); i++) {
-                Phrase phrase = variables.getPhrases().get(i);
+        } else if (layout.getAngle() == ANGLE_90) {
+            for (int i = 0; i < layout.getPhrases().size(); i++) {
+                Phrase phrase = pageText.phrase(layout, i);
                 ColumnText.showTextAligned(canvas, settings.getAlign().getElementAlign(), phrase,
-                        variables.getPageWidth() + i * phrase.getFont().getSize(),
-                        variables.getPageHeight(),
-                        variables.getAngle());
+                        layout.getPageWidth() + i * phrase.getFont().getSize(),
+                        layout.getPageHeight(),
+                        layout.getAngle());
             }
         } else {
-            if (variables.getPhrases().size() == 1) {
-                Phrase phrase = variables.getPhrases().get(0);
+            if (layout.getPhrases().size() == 1) {
+                Phrase phrase = pageText.phrase(layout, 0);
                 ColumnText.showTextAligned(canvas, settings.getAlign().getElementAlign(), phrase,
-                        variables.getPageWidth(),
-                        variables.getPageHeight(),
-                        variables.getAngle());
+                        layout.getPageWidth(),
+                        layout.getPageHeight(),
+                        layout.getAngle());
             } else {
-                for (int i = 0; i < variables.getPhrases().size(); i++) {
-                    Phrase phrase = variables.getPhrases().get(i);
+                for (int i = 0; i < layout.getPhrases().size(); i++) {
+                    Phrase phrase = pageText.phrase(layout, i);
                     ColumnText.showTextAligned(canvas, settings.getAlign().getElementAlign(), phrase,
-                            variables.getPageWidth() + (i - variables.getCenterLine()) * variables.getLineWidth(),
-                            variables.getPageHeight() - (i - variables.getCenterLine()) * variables.getLineHeight(),
-                            variables.getAngle());
+                            layout.getPageWidth() + (i - layout.getCenterLine()) * layout.getLineWidth(),
+                            layout.getPageHeight() - (i - layout.getCenterLine()) * layout.getLineHeight(),
+                            layout.getAngle());
                 }
             }
         }
@@ -155,15 +1590,18 @@ public class PdfWatermarkServiceImpl implements PDFWatermarkService {
                     break;
             }
         }
+        return canvas;
+
+    }
+
+    private PdfGState createGState(PdfWatermarkSettings settings) {
         PdfGState gstate = new PdfGState();
         gstate.setFillOpacity(settings.getOpacity());
         gstate.setStrokeOpacity(settings.getOpacity());
-        canvas.setGState(gstate);
-        return canvas;
-
+        return gstate;
     }
 
-    private void setPageDiagonalLength(InternalWatermarkVariables variables, PdfWatermarkSettings.WatermarkPosition watermarkPosition) {
+    void setPageDiagonalLength(InternalWatermarkVariables variables, PdfWatermarkSettings.WatermarkPosition watermarkPosition) {
         double pageDiagonalLength = 0;
         switch (watermarkPosition) {
             case DIAGONAL:
@@ -171,6 +1609,7 @@ public class PdfWatermarkServiceImpl implements PDFWatermarkService {
                 break;
             case TOP:
             case BOTTOM:
+            case TILED:
                 pageDiagonalLength = variables.getPageWidth();
                 break;
             case LEFT_BOTTOM:
@@ -188,24 +1627,22 @@ public class PdfWatermarkServiceImpl implements PDFWatermarkService {
 
     }
 
-    private void setPhrases(InternalWatermarkVariables variables, PdfWatermarkSettings settings, List<String> lines) {
-        Font defaultFont = new Font(settings.getFontFamily(), settings.getFontSize(), settings.getFontStyle().getStyleCode(), settings.getFontColor());
-        BaseFont defaultBaseFont = defaultFont.getCalculatedBaseFont(false);
+    void setPhrases(InternalWatermarkVariables variables, WatermarkTemplate template) {
+        PdfWatermarkSettings settings = template.settings();
+        Font defaultFont = template.getFont();
 
-        for (String line : lines) {
-            float baseFontWidth = defaultBaseFont.getWidthPoint(line, settings.getFontSize());
+        List<String> lines = template.getLines();
+        for (int i = 0; i < lines.size(); i++) {
+            int fontSize = FontMetrics.fitFontSize(template.getUnitWidth(i), variables.getPageDiagonalLength(), settings.getFontSize());
             Font localFont = defaultFont;
-            int dec = 0;
-            while (variables.getPageDiagonalLength() <= baseFontWidth) {
-                dec++;
-                localFont = new Font(settings.getFontFamily(), settings.getFontSize() - dec, settings.getFontStyle().getStyleCode(), settings.getFontColor());
-                baseFontWidth = defaultBaseFont.getWidthPoint(line, localFont.getSize());
+            if (fontSize != settings.getFontSize()) {
+                localFont = fontMetrics.getFont(settings.getFontFamily(), fontSize, settings.getFontStyle().getStyleCode(), settings.getFontColor());
             }
-            variables.getPhrases().add(new Phrase(line, localFont));
+            variables.getPhrases().add(new Phrase(lines.get(i), localFont));
         }
     }
 
-    private void setCalculatedVariables(InternalWatermarkVariables variables, PdfWatermarkSettings settings) throws PdfException {
+    void setCalculatedVariables(InternalWatermarkVariables variables, PdfWatermarkSettings settings) throws PdfException {
         float angle, lineHeight = 0L, lineWidth = 0L;
         int newPageHeight, newPageWidth;
 
@@ -265,6 +1702,11 @@ public class PdfWatermarkServiceImpl implements PDFWatermarkService {
                 }
                 variables.setPageWidth(newPageWidth);
                 break;
+            case TILED:
+                // the cell is upright, the pattern is turned along the diagonal
+                angle = (float) Math.toDegrees(Math.atan2(variables.getPageHeight(), variables.getPageWidth()));
+                lineHeight = fontSizeValue;
+                break;
             default:
                 LOGGER.error(LOG_ERROR_WATERMARK_POSITION_NOT_FOUND);
                 throw new PdfException(LOG_ERROR_WATERMARK_POSITION_NOT_FOUND);
@@ -284,13 +1726,13 @@ public class PdfWatermarkServiceImpl implements PDFWatermarkService {
     /**
      * Returns width and height of the page, checks rotation
      *
-     * @param reader
+     * @param geometry
      * @param variables
      */
-    private void setDefaultWidthAndHeightFromPage(PdfReader reader, InternalWatermarkVariables variables) {
-        int width = (int) reader.getPageSize(variables.getPageNumber()).getWidth() >> 1;
-        int height = (int) reader.getPageSize(variables.getPageNumber()).getHeight() >> 1;
-        if (reader.getPageRotation(variables.getPageNumber()) % ANGLE_180 != 0) {
+    void setDefaultWidthAndHeightFromPage(PageGeometry geometry, InternalWatermarkVariables variables) {
+        int width = (int) geometry.getWidth() >> 1;
+        int height = (int) geometry.getHeight() >> 1;
+        if (geometry.isRotated()) {
             variables.setPageHeight(width);
             variables.setPageWidth(height);
         } else {
@@ -302,107 +1744,41 @@ public class PdfWatermarkServiceImpl implements PDFWatermarkService {
 
 }
 
-class InternalWatermarkVariables {
-
-    private int pageWidth;
-    private int pageHeight;
-    private int pageNumber;
-    private double pageDiagonalLength;
-    private int angle;
-    private float lineHeight;
-    private float lineWidth;
-    private float fontSizeValue;
-    private float centerLine;
-    private List<Phrase> phrases;
-
-    public InternalWatermarkVariables(int pageNumber) {
-        this.pageNumber = pageNumber;
-        pageWidth = -1;
-        pageHeight = -1;
-        pageDiagonalLength = 0;
-        angle = 0;
-        lineHeight = 0L;
-        lineWidth = 0L;
-        fontSizeValue = 0L;
-        centerLine = 0L;
-
-        phrases = new ArrayList<>();
-    }
-
-    public int getPageWidth() {
-        return pageWidth;
-    }
-
-    public int getPageNumber() {
-        return pageNumber;
-    }
-
-    public double getPageDiagonalLength() {
-        return pageDiagonalLength;
-    }
-
-    public void setPageWidth(int pageWidth) {
-        this.pageWidth = pageWidth;
-    }
-
-    public void setPageNumber(int pageNumber) {
-        this.pageNumber = pageNumber;
-    }
-
-    public void setPageDiagonalLength(double pageDiagonalLength) {
-        this.pageDiagonalLength = pageDiagonalLength;
-    }
-
-    public int getPageHeight() {
-        return pageHeight;
-    }
-
-    public void setPageHeight(int pageHeight) {
-        this.pageHeight = pageHeight;
-    }
-
-    public List<Phrase> getPhrases() {
-        return phrases;
-    }
-
-    public int getAngle() {
-        return angle;
-    }
-
-    public void setAngle(int angle) {
-        this.angle = angle;
-    }
-
-    public float getLineHeight() {
-        return lineHeight;
-    }
-
-    public float getLineWidth() {
-        return lineWidth;
-    }
-
-    public float getFontSizeValue() {
-        return fontSizeValue;
-    }
-
-    public void setLineHeight(float lineHeight) {
-        this.lineHeight = lineHeight;
-    }
+/**
+ * Resolves the tokens of the watermark lines for the page being stamped.
+ * The fitted font of the compiled layout is kept, only the text of the phrase changes.
+ */
+final class PageText {
+    private final WatermarkTemplate template;
+    private final int pages;
+    private final String timestamp;
+    private int page;
 
-    public void setLineWidth(float lineWidth) {
-        this.lineWidth = lineWidth;
+    PageText(WatermarkTemplate template, int pages) {
+        this.template = template;
+        this.pages = pages;
+        this.timestamp = template.hasTimestamp()
+                ? new SimpleDateFormat(WatermarkLine.TIMESTAMP_PATTERN).format(new Date()) : null;
     }
 
-    public void setFontSizeValue(float fontSizeValue) {
-        this.fontSizeValue = fontSizeValue;
+    void setPage(int page) {
+        this.page = page;
     }
 
-    public float getCenterLine() {
-        return centerLine;
+    Phrase phrase(WatermarkLayout layout, int line) {
+        Phrase phrase = layout.getPhrases().get(line);
+        WatermarkLine compiledLine = template.getCompiledLine(line);
+        if (!compiledLine.isDynamic()) {
+            return phrase;
+        }
+        return new Phrase(compiledLine.resolve(page, pages, timestamp), phrase.getFont());
     }
+}
 
-    public void setCenterLine(float centerLine) {
-        this.centerLine = centerLine;
-    }
+interface StampTask {
+    void run() throws PdfException;
+}
 
+interface ReaderSource {
+    PdfReader open() throws IOException;
 }
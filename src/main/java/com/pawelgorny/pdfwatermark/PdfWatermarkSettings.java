@@ -10,8 +10,11 @@ import com.lowagie.text.Element;
 import com.lowagie.text.Font;
 
 import java.awt.*;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -39,8 +42,36 @@ public class PdfWatermarkSettings {
 
     }
 
+    /**
+     * Placement of the watermark. TILED repeats the lines over the whole page: they are laid out once into a cell
+     * of a tiling pattern turned along the page diagonal, and the page is filled with the pattern by a single rectangle.
+     */
     public enum WatermarkPosition {
-        DIAGONAL, TOP, BOTTOM, LEFT_TOP, LEFT_BOTTOM, RIGHT_TOP, RIGHT_BOTTOM
+        DIAGONAL, TOP, BOTTOM, LEFT_TOP, LEFT_BOTTOM, RIGHT_TOP, RIGHT_BOTTOM, TILED
+    }
+
+    /**
+     * How the watermark is written to the pages.
+     * PAGE_CONTENT draws the text directly into the content of every page,
+     * SHARED_XOBJECT draws it once per page geometry into a Form XObject which is then referenced from every page.
+     * REPLACEABLE_XOBJECT does the same with the XObjects in their own optional content group, and records them in the
+     * document so that {@link PDFWatermarkService#replaceWatermark(InputStream, OutputStream, WatermarkTemplate)}
+     * can change the watermark later without touching the pages.
+     */
+    public enum RenderMode {
+        PAGE_CONTENT, SHARED_XOBJECT, REPLACEABLE_XOBJECT
+    }
+
+    /**
+     * How the stamped document is written.
+     * APPEND adds an incremental update after the unchanged original bytes: fastest, but the objects replaced by previous
+     * updates stay in the file. REWRITE writes the whole document again with full compression (object streams and
+     * compressed cross-reference stream), dropping unreachable objects. AUTO rewrites small documents and documents which
+     * already carry incremental updates, and appends to the others. LINEARIZED rewrites the document and linearizes it
+     * (fast web view) with the {@link PdfLinearizer} of the service, qpdf by default.
+     */
+    public enum OutputStrategy {
+        APPEND, REWRITE, AUTO, LINEARIZED
     }
 
     public enum FontStyle {
@@ -69,16 +100,52 @@ public class PdfWatermarkSettings {
     private Layer layer;
     private Align align;
     private boolean firstPageOnly = false;
+    private RenderMode renderMode;
+    private OutputStrategy outputStrategy;
+    private byte[] image;
+    private float imageScale = 1f;
+    private float tileSpacing = DEFAULT_TILE_SPACING;
+    private boolean idempotent = false;
+    private PageSelection pageSelection;
 
     private Map<String, String> infos = null;
 
     private static final int DEFAULT_FONTSIZE = 14;
     private static final float DEFAULT_OPACITY = 0.7F;
+    private static final float DEFAULT_TILE_SPACING = 36F;
 
 
     public PdfWatermarkSettings() {
     }
 
+    /**
+     * Copy constructor, infos are copied as well
+     *
+     * @param other settings to copy
+     */
+    public PdfWatermarkSettings(PdfWatermarkSettings other) {
+        this();
+        fontFamily = other.fontFamily;
+        fontSize = other.fontSize;
+        fontColor = other.fontColor;
+        fontStyle = other.fontStyle;
+        opacity = other.opacity;
+        watermarkPosition = other.watermarkPosition;
+        layer = other.layer;
+        align = other.align;
+        firstPageOnly = other.firstPageOnly;
+        renderMode = other.renderMode;
+        outputStrategy = other.outputStrategy;
+        image = other.image;
+        imageScale = other.imageScale;
+        tileSpacing = other.tileSpacing;
+        idempotent = other.idempotent;
+        pageSelection = other.pageSelection;
+        if (other.infos != null) {
+            infos = new LinkedHashMap<>(other.infos);
+        }
+    }
+
     public PdfWatermarkSettings(boolean defaultInitialise) {
         this();
         if (defaultInitialise) {
@@ -172,4 +239,94 @@ public class PdfWatermarkSettings {
     public void setFirstPageOnly(boolean firstPageOnly) {
         this.firstPageOnly = firstPageOnly;
     }
+
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    public void setRenderMode(RenderMode renderMode) {
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * @return strategy used to write the stamped document, APPEND when not set
+     */
+    public OutputStrategy getOutputStrategy() {
+        return outputStrategy == null ? OutputStrategy.APPEND : outputStrategy;
+    }
+
+    public void setOutputStrategy(OutputStrategy outputStrategy) {
+        this.outputStrategy = outputStrategy;
+    }
+
+    public byte[] getImage() {
+        return image;
+    }
+
+    /**
+     * Image (PNG, JPEG, GIF...) stamped with the text, or instead of it when there are no lines.
+     * It is placed according to the position (centered along the diagonal, at the top or bottom edge, in a corner),
+     * the align (for TOP and BOTTOM) and the layer.
+     *
+     * @param image content of the image file, must not be modified afterwards
+     */
+    public void setImage(byte[] image) {
+        this.image = image;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * @param idempotent true to write a marker (hash of the lines and settings) into the document information
+     *                   and to copy through unchanged the documents which already carry the marker of the same watermark;
+     *                   not allowed with a {@link PageSelection#matching(PageSelection.PagePredicate)} selection
+     */
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    public float getImageScale() {
+        return imageScale;
+    }
+
+    /**
+     * @param imageScale size of the image in points per pixel, 1 by default. The image is scaled down further when it is larger than the page.
+     */
+    public void setImageScale(float imageScale) {
+        this.imageScale = imageScale;
+    }
+
+    public float getTileSpacing() {
+        return tileSpacing;
+    }
+
+    /**
+     * @param tileSpacing space in points between the repeated cells of the TILED position, 36 by default
+     */
+    public void setTileSpacing(float tileSpacing) {
+        this.tileSpacing = tileSpacing;
+    }
+
+    public PageSelection getPageSelection() {
+        return pageSelection;
+    }
+
+    /**
+     * Pages receiving the watermark, all the pages when not set. Ignored when {@link #isFirstPageOnly()} is set.
+     */
+    public void setPageSelection(PageSelection pageSelection) {
+        this.pageSelection = pageSelection;
+    }
+
+    /**
+     * @return selection resulting from firstPageOnly and pageSelection
+     */
+    PageSelection getEffectivePageSelection() {
+        if (firstPageOnly) {
+            return PageSelection.first(1);
+        }
+        return pageSelection != null ? pageSelection : PageSelection.all();
+    }
 }
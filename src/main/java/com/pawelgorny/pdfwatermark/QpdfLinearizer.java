@@ -0,0 +1,79 @@
+package com.pawelgorny.pdfwatermark;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Linearizes with the <a href="https://qpdf.sourceforge.io/">qpdf</a> command line tool ({@code qpdf --linearize in out}),
+ * which has to be installed separately. qpdf keeps the content of the document and writes the hint tables.
+ */
+public final class QpdfLinearizer implements PdfLinearizer {
+
+    private static final Logger LOGGER = org.apache.logging.log4j.LogManager.getLogger(QpdfLinearizer.class);
+
+    /**
+     * qpdf exit code when the file was written with warnings
+     */
+    private static final int EXIT_WARNINGS = 3;
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(1);
+
+    private final String executable;
+    private final Duration timeout;
+
+    /**
+     * Runs {@code qpdf} found on the PATH, with a timeout of one minute
+     */
+    public QpdfLinearizer() {
+        this("qpdf", DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param executable path of the qpdf executable
+     * @param timeout    time after which the process is killed
+     */
+    public QpdfLinearizer(String executable, Duration timeout) {
+        this.executable = executable;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void linearize(Path input, Path output) throws IOException {
+        // messages go to a file: reading a pipe would block beyond the timeout
+        Path log = Files.createTempFile("pdfwatermark-qpdf-", ".log");
+        Process process = null;
+        try {
+            process = new ProcessBuilder(executable, "--linearize", input.toString(), output.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(log.toFile())
+                    .start();
+            if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IOException("qpdf did not finish within " + timeout.toMillis() + " ms");
+            }
+            int exitCode = process.exitValue();
+            if (exitCode == EXIT_WARNINGS) {
+                LOGGER.warn("qpdf warnings when linearizing {}: {}", input, messages(log));
+            } else if (exitCode != 0) {
+                throw new IOException("qpdf failed with exit code " + exitCode + ": " + messages(log));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for qpdf");
+        } finally {
+            if (process != null) {
+                process.destroyForcibly();
+            }
+            Files.deleteIfExists(log);
+        }
+    }
+
+    private static String messages(Path log) throws IOException {
+        return new String(Files.readAllBytes(log), StandardCharsets.UTF_8).trim();
+    }
+}
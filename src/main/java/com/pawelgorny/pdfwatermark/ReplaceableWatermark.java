@@ -0,0 +1,139 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.pdf.PRIndirectReference;
+import com.lowagie.text.pdf.PdfArray;
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfLayer;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfNumber;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfStream;
+import com.lowagie.text.pdf.PdfTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Watermark written with {@link PdfWatermarkSettings.RenderMode#REPLACEABLE_XOBJECT}: one Form XObject per page geometry,
+ * in its own optional content group, referenced from the pages. The object numbers and the geometries of these XObjects
+ * are recorded in the document information, so a new watermark replaces only these objects in an incremental update:
+ * each is rewritten as a small form drawing a new XObject, the pages are not touched.
+ */
+final class ReplaceableWatermark {
+
+    /**
+     * Document information entry: "number width height rotation" of every XObject, separated by ';'
+     */
+    static final String INFO_KEY = "PdfWatermarkXObjects";
+    static final String LAYER_NAME = "Watermark";
+    private static final PdfName CONTENT_NAME = new PdfName("PdfWatermark");
+
+    private final Map<Integer, PageGeometry> xObjects = new LinkedHashMap<>();
+
+    void add(PdfTemplate template, PageGeometry geometry) {
+        xObjects.put(template.getIndirectReference().getNumber(), geometry);
+    }
+
+    boolean isEmpty() {
+        return xObjects.isEmpty();
+    }
+
+    /**
+     * @return object number of every recorded XObject and its page geometry
+     */
+    Map<Integer, PageGeometry> getXObjects() {
+        return xObjects;
+    }
+
+    String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, PageGeometry> entry : xObjects.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            PageGeometry geometry = entry.getValue();
+            sb.append(entry.getKey()).append(' ').append(geometry.getWidth()).append(' ')
+                    .append(geometry.getHeight()).append(' ').append(geometry.getRotation());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param position position of the new watermark, the geometries are recorded without it
+     */
+    static ReplaceableWatermark parse(String record, PdfWatermarkSettings.WatermarkPosition position) throws PdfException {
+        ReplaceableWatermark watermark = new ReplaceableWatermark();
+        try {
+            for (String entry : record.split(";")) {
+                String[] values = entry.trim().split(" ");
+                watermark.xObjects.put(Integer.parseInt(values[0]), new PageGeometry(Float.parseFloat(values[1]),
+                        Float.parseFloat(values[2]), Integer.parseInt(values[3]), position));
+            }
+        } catch (RuntimeException e) {
+            throw new PdfException("Invalid " + INFO_KEY + " entry: " + record);
+        }
+        return watermark;
+    }
+
+    /**
+     * Form XObject written in place of a recorded one: same bounding box and optional content group,
+     * its content only draws the new watermark
+     *
+     * @param previous the recorded XObject as read from the document
+     */
+    static PdfStream replacement(PdfTemplate content, PdfDictionary previous, int compressionLevel) {
+        PdfDictionary xObject = new PdfDictionary();
+        xObject.put(CONTENT_NAME, content.getIndirectReference());
+        PdfDictionary resources = new PdfDictionary();
+        resources.put(PdfName.XOBJECT, xObject);
+
+        PdfStream stream = new PdfStream(("q " + CONTENT_NAME + " Do Q").getBytes(StandardCharsets.ISO_8859_1));
+        stream.put(PdfName.TYPE, PdfName.XOBJECT);
+        stream.put(PdfName.SUBTYPE, PdfName.FORM);
+        stream.put(PdfName.FORMTYPE, new PdfNumber(1));
+        stream.put(PdfName.BBOX, previous.get(PdfName.BBOX));
+        if (previous.get(PdfName.MATRIX) != null) {
+            stream.put(PdfName.MATRIX, previous.get(PdfName.MATRIX));
+        }
+        if (previous.get(PdfName.OC) != null) {
+            stream.put(PdfName.OC, previous.get(PdfName.OC));
+        }
+        stream.put(PdfName.RESOURCES, resources);
+        stream.flateCompress(compressionLevel);
+        return stream;
+    }
+
+    /**
+     * Registers the layer in the optional content properties of the catalog and writes the catalog in the incremental update.
+     * The stamper writes the layer itself but, when appending, not the catalog which lists it.
+     */
+    static void addToCatalog(PdfStamper pdfStamper, PdfReader reader, PdfLayer layer) throws IOException {
+        PdfDictionary catalog = reader.getCatalog();
+        PdfDictionary properties = catalog.getAsDict(PdfName.OCPROPERTIES);
+        if (properties == null) {
+            properties = new PdfDictionary();
+            catalog.put(PdfName.OCPROPERTIES, properties);
+        }
+        PdfDictionary defaults = properties.getAsDict(PdfName.D);
+        if (defaults == null) {
+            defaults = new PdfDictionary();
+            properties.put(PdfName.D, defaults);
+        }
+        append(properties, PdfName.OCGS, layer);
+        append(defaults, PdfName.ORDER, layer);
+        PRIndirectReference root = (PRIndirectReference) reader.getTrailer().get(PdfName.ROOT);
+        pdfStamper.getWriter().addToBody(catalog, root.getNumber());
+    }
+
+    private static void append(PdfDictionary dictionary, PdfName key, PdfLayer layer) {
+        PdfArray array = dictionary.getAsArray(key);
+        if (array == null) {
+            array = new PdfArray();
+            dictionary.put(key, array);
+        }
+        array.add(layer.getRef());
+    }
+}
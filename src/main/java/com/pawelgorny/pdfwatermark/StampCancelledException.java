@@ -0,0 +1,24 @@
+package com.pawelgorny.pdfwatermark;
+
+/**
+ * Thrown when the {@link StampDeadline} of a stamping call is cancelled or its deadline has passed.
+ * The output written so far is incomplete.
+ */
+public class StampCancelledException extends PdfException {
+
+    private static final long serialVersionUID = -2816471693170935164L;
+
+    private final boolean deadlineExceeded;
+
+    public StampCancelledException(String message, boolean deadlineExceeded) {
+        super(message);
+        this.deadlineExceeded = deadlineExceeded;
+    }
+
+    /**
+     * @return true if the deadline has passed, false if the stamping was cancelled
+     */
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+}
@@ -0,0 +1,96 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.time.Duration;
+
+/**
+ * Deadline and cancellation token of a stamping call. The stamping checks it before and after parsing, between the pages
+ * and before writing the output; when it trips, the call ends with a {@link StampCancelledException} and releases the
+ * reader, the stamper and the buffers. A single check may be late by the time of the step being executed
+ * (the parsing of the cross-reference table, one page), the parser itself cannot be interrupted.
+ * Thread-safe: the token is usually cancelled from another thread.
+ */
+public final class StampDeadline {
+
+    /**
+     * Token which never trips, used by the calls without deadline
+     */
+    static final StampDeadline NONE = new StampDeadline(Long.MAX_VALUE, false);
+
+    private final long deadlineNanos;
+    private final boolean bounded;
+    private volatile boolean cancelled;
+
+    private StampDeadline(long deadlineNanos, boolean bounded) {
+        this.deadlineNanos = deadlineNanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * @param timeout time allowed from now
+     * @return token tripping when the timeout elapses or when cancelled
+     */
+    public static StampDeadline after(Duration timeout) {
+        return new StampDeadline(System.nanoTime() + timeout.toNanos(), true);
+    }
+
+    /**
+     * @return token without deadline, tripping only when cancelled
+     */
+    public static StampDeadline cancellable() {
+        return new StampDeadline(Long.MAX_VALUE, false);
+    }
+
+    /**
+     * Makes the stamping stop at its next check
+     */
+    public void cancel() {
+        if (this != NONE) {
+            cancelled = true;
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isExpired() {
+        return bounded && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * @return nanoseconds left before the deadline, Long.MAX_VALUE without deadline
+     */
+    public long getRemainingNanos() {
+        return bounded ? Math.max(0, deadlineNanos - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @param step what would be executed next, for the message of the exception
+     * @throws StampCancelledException if the token was cancelled or the deadline has passed
+     */
+    void check(String step) throws StampCancelledException {
+        if (isTripped()) {
+            throw exception(step);
+        }
+    }
+
+    /**
+     * Same as {@link #check(String)} before stamping a page, without building the message when the token has not tripped
+     */
+    void checkPage(int page) throws StampCancelledException {
+        if (isTripped()) {
+            throw exception("page " + page);
+        }
+    }
+
+    private boolean isTripped() {
+        return cancelled || isExpired();
+    }
+
+    private StampCancelledException exception(String step) {
+        if (cancelled) {
+            return new StampCancelledException("Stamping cancelled before " + step, false);
+        }
+        return new StampCancelledException("Stamping deadline exceeded before " + step, true);
+    }
+}
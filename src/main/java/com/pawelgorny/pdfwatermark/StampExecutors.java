@@ -0,0 +1,68 @@
+package com.pawelgorny.pdfwatermark;
+
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the asynchronous stamping.
+ * The library is built for Java 11, virtual threads are looked up at runtime and used only when the JVM provides them (Java 21+).
+ */
+public final class StampExecutors {
+
+    private static final Logger LOGGER = org.apache.logging.log4j.LogManager.getLogger(StampExecutors.class);
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadFactoryMethod();
+
+    private StampExecutors() {
+    }
+
+    private static Method findVirtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread for every job. On JVMs without virtual threads,
+     * a cached pool of daemon platform threads is returned instead.
+     *
+     * @return executor to be shut down by the caller
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.warn("Virtual threads could not be started, platform threads are used", e);
+            }
+        } else {
+            LOGGER.info("Virtual threads are not available in Java {}, platform threads are used", System.getProperty("java.version"));
+        }
+        return newPlatformThreadExecutor();
+    }
+
+    /**
+     * @return cached pool of daemon platform threads
+     */
+    public static ExecutorService newPlatformThreadExecutor() {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "pdfwatermark-async-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
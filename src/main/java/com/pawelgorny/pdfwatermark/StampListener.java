@@ -0,0 +1,38 @@
+package com.pawelgorny.pdfwatermark;
+
+/**
+ * Instrumentation SPI: called by the service once per document, on the stamping thread.
+ * Implementations must be fast and thread-safe. The default listener does nothing, see {@link JfrStampListener}
+ * for Java Flight Recorder events.
+ */
+public interface StampListener {
+
+    StampListener NO_OP = new StampListener() {
+    };
+
+    /**
+     * Called before the document is parsed, followed by {@link #documentStamped} or {@link #documentFailed}
+     * with the same metrics
+     *
+     * @param metrics measurements of the document, empty so far
+     */
+    default void documentStarted(StampMetrics metrics) {
+    }
+
+    /**
+     * Called when the document was stamped and the output completely written
+     *
+     * @param metrics durations per stage, sizes, pages and layout cache usage
+     */
+    default void documentStamped(StampMetrics metrics) {
+    }
+
+    /**
+     * Called when the stamping failed
+     *
+     * @param metrics measurements of the stages completed before the failure
+     * @param error   reason of the failure
+     */
+    default void documentFailed(StampMetrics metrics, PdfException error) {
+    }
+}
@@ -0,0 +1,151 @@
+package com.pawelgorny.pdfwatermark;
+
+/**
+ * Measurements of one stamped document, passed to the {@link StampListener}
+ */
+public final class StampMetrics {
+
+    /**
+     * Stages of the stamping: parsing of the input, layout of the watermark, rendering of the watermark into the pages
+     * and serialization of the output
+     */
+    public enum Stage {
+        PARSE, LAYOUT, RENDER, SERIALIZE
+    }
+
+    private final long[] stageNanos = new long[Stage.values().length];
+    private long bytesIn;
+    private long bytesOut;
+    private int pages;
+    private int stampedPages;
+    private int layoutCacheHits;
+    private int layoutCacheMisses;
+    private boolean alreadyStamped;
+    private final StampDeadline deadline;
+    private Object listenerState;
+
+    StampMetrics() {
+        this(StampDeadline.NONE);
+    }
+
+    /**
+     * @param deadline deadline of the measured call, checked by the stamping between its steps
+     */
+    StampMetrics(StampDeadline deadline) {
+        this.deadline = deadline;
+    }
+
+    StampDeadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return what the listener attached to the document in {@link StampListener#documentStarted(StampMetrics)}
+     */
+    Object getListenerState() {
+        return listenerState;
+    }
+
+    void setListenerState(Object listenerState) {
+        this.listenerState = listenerState;
+    }
+
+    void addStageNanos(Stage stage, long nanos) {
+        stageNanos[stage.ordinal()] += nanos;
+    }
+
+    void setBytesIn(long bytesIn) {
+        this.bytesIn = bytesIn;
+    }
+
+    void setBytesOut(long bytesOut) {
+        this.bytesOut = bytesOut;
+    }
+
+    void setPages(int pages) {
+        this.pages = pages;
+    }
+
+    void setStampedPages(int stampedPages) {
+        this.stampedPages = stampedPages;
+    }
+
+    void setAlreadyStamped(boolean alreadyStamped) {
+        this.alreadyStamped = alreadyStamped;
+    }
+
+    void setLayoutCache(int hits, int misses) {
+        this.layoutCacheHits = hits;
+        this.layoutCacheMisses = misses;
+    }
+
+    /**
+     * @return time spent in the stage, in nanoseconds. Layout and rendering are summed over all the pages
+     */
+    public long getStageNanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : stageNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    /**
+     * @return size of the input document
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * @return size of the output document
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return number of pages of the document
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * @return number of pages which received the watermark
+     */
+    public int getStampedPages() {
+        return stampedPages;
+    }
+
+    /**
+     * @return true if the input already carried the marker of the same watermark and was copied through unchanged
+     */
+    public boolean isAlreadyStamped() {
+        return alreadyStamped;
+    }
+
+    public int getLayoutCacheHits() {
+        return layoutCacheHits;
+    }
+
+    public int getLayoutCacheMisses() {
+        return layoutCacheMisses;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            sb.append(stage).append('=').append(getStageNanos(stage) / 1000).append("us ");
+        }
+        return sb.append("in=").append(bytesIn).append(" out=").append(bytesOut)
+                .append(" pages=").append(stampedPages).append('/').append(pages)
+                .append(" layoutCache=").append(layoutCacheHits).append('/').append(layoutCacheMisses)
+                .append(alreadyStamped ? " alreadyStamped" : "").toString();
+    }
+}
@@ -0,0 +1,78 @@
+package com.pawelgorny.pdfwatermark;
+
+/**
+ * Outcome of {@link PDFWatermarkService#warmUp(PdfWatermarkSettings...)}: how long it took and how far the stamping sped up
+ */
+public final class WarmUpReport {
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final long elapsedNanos;
+    private final int templates;
+    private final int rounds;
+    private final long firstRoundNanos;
+    private final long lastRoundNanos;
+    private final long compilationMillis;
+    private final boolean converged;
+
+    WarmUpReport(long elapsedNanos, int templates, int rounds, long firstRoundNanos, long lastRoundNanos,
+                 long compilationMillis, boolean converged) {
+        this.elapsedNanos = elapsedNanos;
+        this.templates = templates;
+        this.rounds = rounds;
+        this.firstRoundNanos = firstRoundNanos;
+        this.lastRoundNanos = lastRoundNanos;
+        this.compilationMillis = compilationMillis;
+        this.converged = converged;
+    }
+
+    /**
+     * @return duration of the whole warm-up, fonts and images loading included
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return number of warmed watermarks, one per settings and position
+     */
+    public int getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @return number of rounds, each round stamps the synthetic document once with every watermark
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    public long getFirstRoundNanos() {
+        return firstRoundNanos;
+    }
+
+    public long getLastRoundNanos() {
+        return lastRoundNanos;
+    }
+
+    /**
+     * @return time spent by the JIT compiler during the warm-up, -1 if the JVM does not report it
+     */
+    public long getCompilationMillis() {
+        return compilationMillis;
+    }
+
+    /**
+     * @return true if the rounds stopped getting faster, false if the warm-up ended at its maximum duration
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d watermarks, %d rounds in %.1f ms: round %.1f ms -> %.1f ms, JIT %d ms, %s",
+                templates, rounds, elapsedNanos / NANOS_PER_MILLI, firstRoundNanos / NANOS_PER_MILLI,
+                lastRoundNanos / NANOS_PER_MILLI, compilationMillis, converged ? "converged" : "stopped at the maximum duration");
+    }
+}
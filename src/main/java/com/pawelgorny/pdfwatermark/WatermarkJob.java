@@ -0,0 +1,65 @@
+package com.pawelgorny.pdfwatermark;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * One document of a batch: input file, output file and the watermark to apply.
+ *
+ * @see PDFWatermarkService#stampAll(java.util.Collection)
+ */
+public final class WatermarkJob {
+
+    private final Path input;
+    private final Path output;
+    private final WatermarkTemplate template;
+    private final List<String> lines;
+    private final PdfWatermarkSettings settings;
+
+    public WatermarkJob(Path input, Path output, WatermarkTemplate template) {
+        this.input = input;
+        this.output = output;
+        this.template = template;
+        this.lines = null;
+        this.settings = null;
+    }
+
+    /**
+     * The lines and settings are compiled when the job is executed
+     */
+    public WatermarkJob(Path input, Path output, List<String> lines, PdfWatermarkSettings settings) {
+        this.input = input;
+        this.output = output;
+        this.template = null;
+        this.lines = lines;
+        this.settings = settings;
+    }
+
+    public Path getInput() {
+        return input;
+    }
+
+    public Path getOutput() {
+        return output;
+    }
+
+    /**
+     * @return compiled watermark, null if the job was created with lines and settings
+     */
+    public WatermarkTemplate getTemplate() {
+        return template;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    public PdfWatermarkSettings getSettings() {
+        return settings;
+    }
+
+    @Override
+    public String toString() {
+        return input + " -> " + output;
+    }
+}
@@ -0,0 +1,45 @@
+package com.pawelgorny.pdfwatermark;
+
+/**
+ * Outcome of one job of a batch
+ */
+public final class WatermarkJobResult {
+
+    private final WatermarkJob job;
+    private final int pages;
+    private final long durationNanos;
+    private final PdfException error;
+
+    WatermarkJobResult(WatermarkJob job, int pages, long durationNanos, PdfException error) {
+        this.job = job;
+        this.pages = pages;
+        this.durationNanos = durationNanos;
+        this.error = error;
+    }
+
+    public WatermarkJob getJob() {
+        return job;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+    /**
+     * @return number of stamped pages, 0 if the job failed
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return reason of the failure, null if the job succeeded
+     */
+    public PdfException getError() {
+        return error;
+    }
+}
@@ -0,0 +1,100 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Phrase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable result of the layout calculation for one page geometry: phrases with their fitted fonts,
+ * anchor point, angle and distance between the lines, size of the tiling cell, placement of the image.
+ */
+final class WatermarkLayout {
+
+    private final PageGeometry geometry;
+    private final int pageWidth;
+    private final int pageHeight;
+    private final int angle;
+    private final float lineHeight;
+    private final float lineWidth;
+    private final float centerLine;
+    private final float tileWidth;
+    private final float tileHeight;
+    private final List<Phrase> phrases;
+    private final float[] imageMatrix;
+
+    WatermarkLayout(PageGeometry geometry, InternalWatermarkVariables variables, float[] imageMatrix) {
+        this.geometry = geometry;
+        this.pageWidth = variables.getPageWidth();
+        this.pageHeight = variables.getPageHeight();
+        this.angle = variables.getAngle();
+        this.lineHeight = variables.getLineHeight();
+        this.lineWidth = variables.getLineWidth();
+        this.centerLine = variables.getCenterLine();
+        this.tileWidth = variables.getTileWidth();
+        this.tileHeight = variables.getTileHeight();
+        this.phrases = Collections.unmodifiableList(new ArrayList<>(variables.getPhrases()));
+        this.imageMatrix = imageMatrix;
+    }
+
+    PageGeometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return x coordinate of the anchor point of the text
+     */
+    int getPageWidth() {
+        return pageWidth;
+    }
+
+    /**
+     * @return y coordinate of the anchor point of the text
+     */
+    int getPageHeight() {
+        return pageHeight;
+    }
+
+    int getAngle() {
+        return angle;
+    }
+
+    float getLineHeight() {
+        return lineHeight;
+    }
+
+    float getLineWidth() {
+        return lineWidth;
+    }
+
+    float getCenterLine() {
+        return centerLine;
+    }
+
+    /**
+     * @return true if the lines are repeated over the page by a tiling pattern
+     */
+    boolean isTiled() {
+        return tileWidth > 0;
+    }
+
+    float getTileWidth() {
+        return tileWidth;
+    }
+
+    float getTileHeight() {
+        return tileHeight;
+    }
+
+    List<Phrase> getPhrases() {
+        return phrases;
+    }
+
+    /**
+     * @return transformation matrix (a, b, c, d, e, f) placing the image, null without image. Not to be modified.
+     */
+    float[] getImageMatrix() {
+        return imageMatrix;
+    }
+}
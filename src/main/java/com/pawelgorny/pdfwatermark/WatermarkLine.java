@@ -0,0 +1,154 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.pdf.BaseFont;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Watermark line split once into fixed text and tokens replaced when the watermark is written:
+ * {@code {page}} (page number), {@code {pages}} (number of pages) and {@code {timestamp}} (time of the stamping).
+ * Unknown tokens are kept as they are.
+ */
+final class WatermarkLine {
+
+    enum Token {
+        PAGE("{page}"), PAGES("{pages}"), TIMESTAMP("{timestamp}");
+
+        private final String text;
+
+        Token(String text) {
+            this.text = text;
+        }
+    }
+
+    static final String TIMESTAMP_PATTERN = "yyyy-MM-dd'T'HH:mm:ssXXX";
+    private static final String TIMESTAMP_SAMPLE = "2000-01-01T00:00:00+00:00";
+    /**
+     * Width reserved for page numbers when fitting the font size, the real number is shorter for documents below 100 000 pages
+     */
+    private static final int RESERVED_DIGITS = 5;
+
+    private final String text;
+    private final List<Object> segments;
+    private final boolean pageDependent;
+    private final boolean dynamic;
+
+    private WatermarkLine(String text, List<Object> segments) {
+        this.text = text;
+        this.segments = Collections.unmodifiableList(segments);
+        boolean page = false;
+        boolean anyToken = false;
+        for (Object segment : segments) {
+            if (segment instanceof Token) {
+                anyToken = true;
+                page |= segment != Token.TIMESTAMP;
+            }
+        }
+        this.pageDependent = page;
+        this.dynamic = anyToken;
+    }
+
+    static WatermarkLine parse(String text) {
+        List<Object> segments = new ArrayList<>();
+        int fixedStart = 0;
+        int index = text.indexOf('{');
+        while (index >= 0) {
+            Token token = tokenAt(text, index);
+            if (token != null) {
+                if (index > fixedStart) {
+                    segments.add(text.substring(fixedStart, index));
+                }
+                segments.add(token);
+                fixedStart = index + token.text.length();
+                index = text.indexOf('{', fixedStart);
+            } else {
+                index = text.indexOf('{', index + 1);
+            }
+        }
+        if (fixedStart < text.length()) {
+            segments.add(text.substring(fixedStart));
+        }
+        return new WatermarkLine(text, segments);
+    }
+
+    private static Token tokenAt(String text, int index) {
+        for (Token token : Token.values()) {
+            if (text.startsWith(token.text, index)) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /**
+     * @return true if the line contains a token
+     */
+    boolean isDynamic() {
+        return dynamic;
+    }
+
+    /**
+     * @return true if the line changes from page to page
+     */
+    boolean isPageDependent() {
+        return pageDependent;
+    }
+
+    boolean hasToken(Token token) {
+        return segments.contains(token);
+    }
+
+    /**
+     * Width of the line for the font size 1, with the widest possible values of the tokens.
+     * The fixed parts are measured once through the font metrics cache.
+     */
+    float getUnitWidth(FontMetrics fontMetrics, BaseFont baseFont) {
+        float width = 0;
+        for (Object segment : segments) {
+            if (segment == Token.TIMESTAMP) {
+                width += fontMetrics.getUnitWidth(baseFont, TIMESTAMP_SAMPLE);
+            } else if (segment instanceof Token) {
+                width += RESERVED_DIGITS * widestDigit(fontMetrics, baseFont);
+            } else {
+                width += fontMetrics.getUnitWidth(baseFont, (String) segment);
+            }
+        }
+        return width;
+    }
+
+    private static float widestDigit(FontMetrics fontMetrics, BaseFont baseFont) {
+        float widest = 0;
+        for (char digit = '0'; digit <= '9'; digit++) {
+            widest = Math.max(widest, fontMetrics.getUnitWidth(baseFont, String.valueOf(digit)));
+        }
+        return widest;
+    }
+
+    /**
+     * @return the text of the line with the tokens replaced
+     */
+    String resolve(int page, int pages, String timestamp) {
+        if (!dynamic) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (Object segment : segments) {
+            if (segment == Token.PAGE) {
+                sb.append(page);
+            } else if (segment == Token.PAGES) {
+                sb.append(pages);
+            } else if (segment == Token.TIMESTAMP) {
+                sb.append(timestamp);
+            } else {
+                sb.append((String) segment);
+            }
+        }
+        return sb.toString();
+    }
+}
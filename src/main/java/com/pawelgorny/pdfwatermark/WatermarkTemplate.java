@@ -0,0 +1,217 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Font;
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.BaseFont;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Watermark compiled from the settings and the lines: validated snapshot of the settings, resolved fonts,
+ * measured widths of the lines and layouts computed so far for the page geometries met.
+ * Immutable from the outside and safe to share between threads and between stamp calls.
+ *
+ * @see PDFWatermarkService#compile(List, PdfWatermarkSettings)
+ */
+public final class WatermarkTemplate {
+
+    private static final int MAX_LAYOUTS = 256;
+    /**
+     * Key of the document information entry holding the fingerprint of the watermark, see {@link PdfWatermarkSettings#setIdempotent(boolean)}
+     */
+    public static final String MARKER_KEY = "PdfWatermark";
+
+    private final PdfWatermarkSettings settings;
+    private final List<String> lines;
+    private final WatermarkLine[] compiledLines;
+    private final boolean pageDependent;
+    private final boolean timestamp;
+    private final Font font;
+    private final BaseFont baseFont;
+    private final float[] unitWidths;
+    private final Image image;
+    private final String fingerprint;
+    private final ConcurrentMap<PageGeometry, WatermarkLayout> layouts = new ConcurrentHashMap<>();
+
+    WatermarkTemplate(List<String> lines, PdfWatermarkSettings settings, FontMetrics fontMetrics, ImageCache imageCache) throws PdfException {
+        validate(lines, settings);
+        this.settings = new PdfWatermarkSettings(settings);
+        if (this.settings.getInfos() != null) {
+            this.settings.setInfos(Collections.unmodifiableMap(this.settings.getInfos()));
+        }
+        this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+
+        int style = settings.getFontStyle().getStyleCode();
+        font = fontMetrics.getFont(settings.getFontFamily(), settings.getFontSize(), style, settings.getFontColor());
+        baseFont = fontMetrics.getBaseFont(settings.getFontFamily(), style);
+        unitWidths = new float[this.lines.size()];
+        compiledLines = new WatermarkLine[this.lines.size()];
+        boolean anyPageDependent = false;
+        boolean anyTimestamp = false;
+        for (int i = 0; i < unitWidths.length; i++) {
+            compiledLines[i] = WatermarkLine.parse(this.lines.get(i));
+            unitWidths[i] = compiledLines[i].getUnitWidth(fontMetrics, baseFont);
+            anyPageDependent |= compiledLines[i].isPageDependent();
+            anyTimestamp |= compiledLines[i].hasToken(WatermarkLine.Token.TIMESTAMP);
+        }
+        pageDependent = anyPageDependent;
+        timestamp = anyTimestamp;
+        if (pageDependent && settings.getRenderMode() == PdfWatermarkSettings.RenderMode.REPLACEABLE_XOBJECT) {
+            throw new PdfException("Page number tokens cannot be used with the REPLACEABLE_XOBJECT render mode");
+        }
+        image = settings.getImage() == null ? null : imageCache.get(settings.getImage());
+        fingerprint = fingerprint(this.lines, this.settings);
+    }
+
+    private static void validate(List<String> lines, PdfWatermarkSettings settings) throws PdfException {
+        if (lines == null || lines.contains(null)) {
+            throw new PdfException("Watermark lines must not be null");
+        }
+        validate(settings);
+    }
+
+    /**
+     * Checks the settings alone, before the lines are known
+     */
+    static void validate(PdfWatermarkSettings settings) throws PdfException {
+        if (settings == null) {
+            throw new PdfException("Watermark settings must not be null");
+        }
+        if (settings.getWatermarkPosition() == null || settings.getAlign() == null || settings.getFontStyle() == null) {
+            throw new PdfException("Watermark position, align and font style are required");
+        }
+        if (settings.getFontSize() <= 0) {
+            throw new PdfException("Font size must be positive: " + settings.getFontSize());
+        }
+        if (settings.getOpacity() < 0 || settings.getOpacity() > 1) {
+            throw new PdfException("Opacity must be between 0 and 1: " + settings.getOpacity());
+        }
+        if (settings.getTileSpacing() < 0) {
+            throw new PdfException("Tile spacing must not be negative: " + settings.getTileSpacing());
+        }
+        if (settings.getImage() != null && settings.getImageScale() <= 0) {
+            throw new PdfException("Image scale must be positive: " + settings.getImageScale());
+        }
+        if (settings.isIdempotent() && settings.getEffectivePageSelection().hasPredicate()) {
+            // the fingerprint cannot tell two predicates apart, a document would be skipped for another selection
+            throw new PdfException("Idempotent stamping cannot be used with a page selection matching a predicate");
+        }
+    }
+
+    /**
+     * Value-based key of the given lines and settings, used to find an already compiled template.
+     * Built from copies, a later change of the lines, infos or image of the caller does not change a cached key.
+     */
+    static List<Object> key(List<String> lines, PdfWatermarkSettings settings) {
+        return Arrays.<Object>asList(lines == null ? null : new ArrayList<>(lines),
+                settings.getFontFamily(), settings.getFontSize(), settings.getFontColor(), settings.getFontStyle(),
+                settings.getOpacity(), settings.getWatermarkPosition(), settings.getLayer(), settings.getAlign(),
+                settings.isFirstPageOnly(), settings.getRenderMode(), settings.getOutputStrategy(), settings.getPageSelection(),
+                settings.getInfos() == null ? null : new TreeMap<>(settings.getInfos()),
+                settings.getImage() == null ? null : ImageCache.sha256(settings.getImage()), settings.getImageScale(), settings.isIdempotent(), settings.getTileSpacing());
+    }
+
+    /**
+     * Hash of everything which changes the stamped result: lines, font, color, opacity, placement, pages, image and infos.
+     * The output strategy does not change the content and is left out.
+     */
+    static String fingerprint(List<String> lines, PdfWatermarkSettings settings) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line.length()).append(':').append(line).append('\n');
+        }
+        sb.append(settings.getFontFamily()).append('|').append(settings.getFontSize()).append('|')
+                .append(settings.getFontColor() == null ? "" : Integer.toHexString(settings.getFontColor().getRGB())).append('|')
+                .append(settings.getFontStyle()).append('|').append(settings.getOpacity()).append('|')
+                .append(settings.getWatermarkPosition()).append('|').append(settings.getLayer()).append('|')
+                .append(settings.getAlign()).append('|').append(settings.getEffectivePageSelection()).append('|')
+                .append(settings.getRenderMode()).append('|')
+                .append(settings.getImage() == null ? "" : ImageCache.sha256(settings.getImage())).append('|')
+                .append(settings.getImageScale()).append('|')
+                .append(settings.getTileSpacing()).append('|')
+                .append(settings.getInfos() == null ? "" : new TreeMap<>(settings.getInfos()));
+        return ImageCache.sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return hash of the lines and the settings written as marker into the stamped documents
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return copy of the settings this template was compiled from
+     */
+    public PdfWatermarkSettings getSettings() {
+        return new PdfWatermarkSettings(settings);
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * Settings used internally, must not be modified
+     */
+    PdfWatermarkSettings settings() {
+        return settings;
+    }
+
+    Font getFont() {
+        return font;
+    }
+
+    BaseFont getBaseFont() {
+        return baseFont;
+    }
+
+    /**
+     * @return decoded image shared by all the documents, null if the watermark has none
+     */
+    Image getImage() {
+        return image;
+    }
+
+    WatermarkLine getCompiledLine(int line) {
+        return compiledLines[line];
+    }
+
+    /**
+     * @return true if a line contains a page number token, the watermark then differs from page to page
+     */
+    boolean isPageDependent() {
+        return pageDependent;
+    }
+
+    /**
+     * @return true if a line contains the timestamp token
+     */
+    boolean hasTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return width of the line for the font size 1, with the widest values of its tokens
+     */
+    float getUnitWidth(int line) {
+        return unitWidths[line];
+    }
+
+    WatermarkLayout getLayout(PageGeometry geometry) {
+        return layouts.get(geometry);
+    }
+
+    void putLayout(WatermarkLayout layout) {
+        if (layouts.size() < MAX_LAYOUTS) {
+            layouts.putIfAbsent(layout.getGeometry(), layout);
+        }
+    }
+}
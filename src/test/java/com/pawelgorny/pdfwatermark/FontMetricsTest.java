@@ -0,0 +1,53 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Font;
+import com.lowagie.text.pdf.BaseFont;
+import org.junit.Test;
+
+import java.awt.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class FontMetricsTest {
+
+    private static final String DISCLAIMER = "This document is confidential and intended solely for the use of the individual to whom it is addressed";
+
+    @Test
+    public void testFitFontSizeSameAsLoop() {
+        FontMetrics fontMetrics = new FontMetrics();
+        BaseFont baseFont = fontMetrics.getBaseFont(Font.HELVETICA, Font.BOLD);
+        String[] lines = {"DRAFT", "user", DISCLAIMER, "2020-01-01T10:00:00+01:00"};
+        int[] fontSizes = {8, 14, 40, 72};
+        for (String line : lines) {
+            for (int fontSize : fontSizes) {
+                for (double length = 50; length < 2000; length += 7.3) {
+                    int expected = fitFontSizeLoop(baseFont, line, length, fontSize);
+                    int actual = FontMetrics.fitFontSize(fontMetrics.getUnitWidth(baseFont, line), length, fontSize);
+                    assertEquals(line + " " + fontSize + " " + length, Math.max(expected, 1), actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFontsAreCached() {
+        FontMetrics fontMetrics = new FontMetrics();
+        Font font = fontMetrics.getFont(Font.HELVETICA, 14, Font.BOLD, Color.LIGHT_GRAY);
+        assertSame(font, fontMetrics.getFont(Font.HELVETICA, 14, Font.BOLD, Color.LIGHT_GRAY));
+        assertSame(fontMetrics.getBaseFont(Font.HELVETICA, Font.BOLD), fontMetrics.getBaseFont(Font.HELVETICA, Font.BOLD));
+    }
+
+    /**
+     * Font size fitting as it was done before, one point at a time
+     */
+    static int fitFontSizeLoop(BaseFont baseFont, String line, double length, int fontSize) {
+        int size = fontSize;
+        float width = baseFont.getWidthPoint(line, size);
+        while (length <= width) {
+            size--;
+            width = baseFont.getWidthPoint(line, size);
+        }
+        return size;
+    }
+}
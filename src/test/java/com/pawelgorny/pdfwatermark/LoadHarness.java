@@ -0,0 +1,161 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.junit.Test;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * End-to-end load and soak test: stamps a synthetic corpus from concurrent threads for a set duration and reports
+ * the latency percentiles, the throughput, the GC pauses and the allocation rate, every interval and for the whole run.
+ * Not part of the unit tests, run it offline with the {@code load} profile:
+ * <pre>
+ * mvn -o test -Pload -Dload.concurrency=8 -Dload.duration=PT10M
+ * </pre>
+ * System properties, with their defaults in the profile: {@code load.concurrency} (4), {@code load.duration} (PT1M),
+ * {@code load.warmup} (PT15S, not reported), {@code load.interval} (PT10S), {@code load.documents} (size of the corpus, 40),
+ * {@code load.seed} (42) and {@code load.strategy} (output strategy, APPEND).
+ */
+public class LoadHarness {
+
+    private final int concurrency = Integer.getInteger("load.concurrency", Runtime.getRuntime().availableProcessors());
+    private final Duration duration = Duration.parse(System.getProperty("load.duration", "PT1M"));
+    private final Duration warmup = Duration.parse(System.getProperty("load.warmup", "PT15S"));
+    private final Duration interval = Duration.parse(System.getProperty("load.interval", "PT10S"));
+    private final int documents = Integer.getInteger("load.documents", 40);
+    private final long seed = Long.getLong("load.seed", 42);
+    private final PdfWatermarkSettings.OutputStrategy strategy = PdfWatermarkSettings.OutputStrategy.valueOf(System.getProperty("load.strategy", "APPEND"));
+
+    private final LatencyHistogram gcPauses = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean measuring;
+
+    @Test
+    public void soak() throws Exception {
+        List<SyntheticCorpus.Spec> specs = SyntheticCorpus.mix(documents, seed);
+        List<byte[]> corpus = SyntheticCorpus.generate(specs);
+        long corpusBytes = corpus.stream().mapToLong(document -> document.length).sum();
+        System.out.println(String.format(Locale.ROOT, "Corpus: %d documents, %.1f MB, %d threads, %s warm-up, %s measured, %s output",
+                corpus.size(), corpusBytes / 1048576.0, concurrency, warmup, duration, strategy));
+
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        List<WatermarkTemplate> templates = new ArrayList<>();
+        for (PdfWatermarkSettings.WatermarkPosition position : PdfWatermarkSettings.WatermarkPosition.values()) {
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            settings.setWatermarkPosition(position);
+            settings.setOutputStrategy(strategy);
+            templates.add(service.compile(Arrays.asList("CONFIDENTIAL", "load test", "{page} / {pages}"), settings));
+        }
+        listenToGarbageCollections();
+
+        LatencyHistogram total = new LatencyHistogram();
+        AtomicReference<LatencyHistogram> current = new AtomicReference<>(new LatencyHistogram());
+        AtomicLong allocatedBytes = new AtomicLong();
+        long warmupEnd = System.nanoTime() + warmup.toNanos();
+        long end = warmupEnd + duration.toNanos();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            running.add(workers.submit(() -> {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                long threadId = Thread.currentThread().getId();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long allocatedAtStart = -1;
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    if (allocatedAtStart < 0 && now >= warmupEnd) {
+                        allocatedAtStart = threads.getThreadAllocatedBytes(threadId);
+                    }
+                    byte[] document = corpus.get(random.nextInt(corpus.size()));
+                    WatermarkTemplate template = templates.get(random.nextInt(templates.size()));
+                    long start = System.nanoTime();
+                    try {
+                        service.stamp(new ByteArrayInputStream(document), OutputStream.nullOutputStream(), template);
+                    } catch (PdfException e) {
+                        failures.incrementAndGet();
+                        continue;
+                    }
+                    if (start >= warmupEnd) {
+                        long latency = System.nanoTime() - start;
+                        total.recordNanos(latency);
+                        current.get().recordNanos(latency);
+                    }
+                }
+                if (allocatedAtStart >= 0) {
+                    allocatedBytes.addAndGet(threads.getThreadAllocatedBytes(threadId) - allocatedAtStart);
+                }
+            }));
+        }
+        workers.shutdown();
+
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, warmupEnd - System.nanoTime()));
+        measuring = true;
+        long measureStart = System.nanoTime();
+        long intervalStart = measureStart;
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(interval.toNanos(), remaining));
+            long now = System.nanoTime();
+            LatencyHistogram histogram = current.getAndSet(new LatencyHistogram());
+            System.out.println(String.format(Locale.ROOT, "%6.0f s  %7.1f docs/s  %s",
+                    (now - measureStart) / 1e9, histogram.getCount() * 1e9 / (now - intervalStart), histogram.toPercentileString()));
+            intervalStart = now;
+        }
+        // the documents in progress at the end are still measured
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        measuring = false;
+        for (Future<?> worker : running) {
+            worker.get();
+        }
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+
+        System.out.println(String.format(Locale.ROOT, "Latency: %s, mean %.1f ms", total.toPercentileString(), total.getMeanMicros() / 1000));
+        System.out.println(String.format(Locale.ROOT, "Throughput: %d documents, %.1f docs/s, %d failures",
+                total.getCount(), total.getCount() / seconds, failures.get()));
+        System.out.println(String.format(Locale.ROOT, "GC pauses: %d, total %.1f ms (%.2f %% of the time), %s",
+                gcPauses.getCount(), gcPauses.getCount() * gcPauses.getMeanMicros() / 1000,
+                gcPauses.getCount() * gcPauses.getMeanMicros() / 1e4 / seconds, gcPauses.toPercentileString()));
+        System.out.println(String.format(Locale.ROOT, "Allocation: %.1f MB/s, %.1f MB per document",
+                allocatedBytes.get() / 1048576.0 / seconds, total.getCount() == 0 ? 0 : allocatedBytes.get() / 1048576.0 / total.getCount()));
+        assertEquals("failed documents", 0, failures.get());
+    }
+
+    /**
+     * Records the duration of the collections reported during the measurement. The beans of the concurrent cycles
+     * (ZGC and Shenandoah "Cycles") report work done alongside the application, they are not pauses.
+     */
+    private void listenToGarbageCollections() {
+        NotificationListener listener = (Notification notification, Object handback) -> {
+            if (measuring && GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                gcPauses.recordNanos(TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+            }
+        };
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter && !collector.getName().endsWith("Cycles")) {
+                ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.pdf.PdfReader;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void testFailFast() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000, MemoryBudget.Policy.FAIL_FAST);
+        MemoryBudget.Reservation reservation = budget.acquire(800, true);
+        assertEquals(800, budget.getUsedBytes());
+        try {
+            budget.acquire(300, true);
+            fail();
+        } catch (MemoryBudgetExceededException e) {
+            assertEquals(800, budget.getUsedBytes());
+        }
+        reservation.close();
+        reservation.close();
+        assertEquals(0, budget.getUsedBytes());
+        try {
+            budget.acquire(5000, false);
+            fail();
+        } catch (MemoryBudgetExceededException e) {
+            assertEquals(0, budget.getUsedBytes());
+        }
+        // larger than the whole budget: admitted alone when waiting
+        new MemoryBudget(1000, MemoryBudget.Policy.WAIT).acquire(5000, false).close();
+    }
+
+    @Test
+    public void testWait() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(1000, MemoryBudget.Policy.WAIT);
+        MemoryBudget.Reservation reservation = budget.acquire(800, true);
+        CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> {
+            try {
+                budget.acquire(300, true).close();
+            } catch (PdfException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (budget.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, budget.getQueueDepth());
+        assertFalse(waiting.isDone());
+        reservation.close();
+        waiting.get(5, TimeUnit.SECONDS);
+        assertEquals(0, budget.getQueueDepth());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testSpoolToDisk() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000, MemoryBudget.Policy.SPOOL_TO_DISK);
+        MemoryBudget.Reservation reservation = budget.acquire(1000, true);
+        assertNull(budget.acquire(1, true));
+
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        service.setMemoryBudget(new MemoryBudget(1024, MemoryBudget.Policy.SPOOL_TO_DISK));
+        String filename = "watermark-test-budget.pdf";
+        File inputFile = PDFWatermarkServiceTest.generatePdfFromText(filename, 5);
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            service.stamp(fis, output, Arrays.asList("DRAFT", "user"), new PdfWatermarkSettings(true));
+            PdfReader reader = new PdfReader(output.toByteArray());
+            assertEquals(5, reader.getNumberOfPages());
+            assertTrue(output.size() > inputFile.length());
+            reader.close();
+        } finally {
+            PDFWatermarkServiceTest.deletePDF(filename);
+            reservation.close();
+        }
+        assertEquals(0, service.getMemoryBudget().getUsedBytes());
+    }
+
+    @Test
+    public void testReservedBeforeParsing() throws Exception {
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        service.setMemoryBudget(new MemoryBudget(1024, MemoryBudget.Policy.FAIL_FAST));
+        final List<StampMetrics> failed = new ArrayList<>();
+        service.setStampListener(new StampListener() {
+            @Override
+            public void documentFailed(StampMetrics metrics, PdfException e) {
+                failed.add(metrics);
+            }
+        });
+        String filename = "watermark-test-budget-buffer.pdf";
+        File inputFile = PDFWatermarkServiceTest.generatePdfFromText(filename, 5);
+        try {
+            ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(inputFile.toPath()));
+            try {
+                service.stamp(input, new ByteArrayOutputStream(), Arrays.asList("DRAFT"), new PdfWatermarkSettings(true));
+                fail();
+            } catch (MemoryBudgetExceededException e) {
+                // refused from the length of the buffer, the document was not parsed
+                assertEquals(1, failed.size());
+                assertEquals(0, failed.get(0).getStageNanos(StampMetrics.Stage.PARSE));
+            }
+        } finally {
+            PDFWatermarkServiceTest.deletePDF(filename);
+        }
+        assertEquals(0, service.getMemoryBudget().getUsedBytes());
+    }
+}
@@ -8,19 +8,43 @@ package com.pawelgorny.pdfwatermark;
 //import com.itextpdf.text.pdf.PdfWriter;
 //import com.itextpdf.text.pdf.parser.*;
 import com.lowagie.text.*;
+import com.lowagie.text.pdf.BaseFont;
 import com.lowagie.text.pdf.PdfDictionary;
 import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PRStream;
 import com.lowagie.text.pdf.PdfReader;
 import com.lowagie.text.pdf.PdfWriter;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class PDFWatermarkServiceTest {
 
@@ -108,6 +132,948 @@ public class PDFWatermarkServiceTest {
 //        fileOutputStream.close();
     }
 
+    @Test
+    public void testServiceWatermarkSharedXObject() throws Exception {
+        String filename = "watermark-test-xobject.pdf";
+        File inputFile = generatePdfFromText(filename, 50);
+        List<String> lines = Arrays.asList("DRAFT", "user");
+        try {
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            byte[] pageContent = stampFile(inputFile, lines, settings);
+
+            settings.setRenderMode(PdfWatermarkSettings.RenderMode.SHARED_XOBJECT);
+            byte[] sharedXObject = stampFile(inputFile, lines, settings);
+
+            assertTrue(sharedXObject.length > inputFile.length());
+            assertTrue(sharedXObject.length < pageContent.length);
+
+            PdfReader reader = new PdfReader(sharedXObject);
+            assertEquals(50, reader.getNumberOfPages());
+            reader.close();
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testLayoutCacheMixedPageSizes() throws Exception {
+        String filename = "watermark-test-mixed.pdf";
+        File inputFile = generatePdfFromText(filename, 10, PageSize.A4, PageSize.LETTER);
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            settings.setWatermarkPosition(PdfWatermarkSettings.WatermarkPosition.TOP);
+            service.stamp(fis, new ByteArrayOutputStream(), Arrays.asList("DRAFT", "user"), settings);
+        } finally {
+            deletePDF(filename);
+        }
+        assertEquals(2, service.getLayoutCacheMisses());
+        assertEquals(8, service.getLayoutCacheHits());
+    }
+
+    @Test
+    public void testCompiledTemplate() throws Exception {
+        String filename = "watermark-test-template.pdf";
+        File inputFile = generatePdfFromText(filename, 3);
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        List<String> lines = new ArrayList<>(Arrays.asList("DRAFT", "user"));
+        PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+        try {
+            WatermarkTemplate template = service.compile(lines, settings);
+            assertSame(template, service.compile(Arrays.asList("DRAFT", "user"), new PdfWatermarkSettings(true)));
+
+            settings.setFontSize(40);
+            lines.add("changed");
+            assertEquals(14, template.getSettings().getFontSize());
+            assertEquals(2, template.getLines().size());
+
+            // the cache key holds copies: changing the infos or the image of the caller does not lose the entry
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB), "png", png);
+            PdfWatermarkSettings imageSettings = new PdfWatermarkSettings(true);
+            imageSettings.setInfos(new HashMap<>(Collections.singletonMap("Creator", "test")));
+            imageSettings.setImage(png.toByteArray());
+            WatermarkTemplate imageTemplate = service.compile(Arrays.asList("DRAFT"), imageSettings);
+            imageSettings.getInfos().put("Creator", "changed");
+            imageSettings.getImage()[0] = 0;
+            PdfWatermarkSettings sameSettings = new PdfWatermarkSettings(true);
+            sameSettings.setInfos(Collections.singletonMap("Creator", "test"));
+            sameSettings.setImage(png.toByteArray());
+            assertSame(imageTemplate, service.compile(Arrays.asList("DRAFT"), sameSettings));
+
+            for (int i = 0; i < 2; i++) {
+                try (FileInputStream fis = new FileInputStream(inputFile)) {
+                    ByteArrayOutputStream fos = new ByteArrayOutputStream();
+                    service.stamp(fis, fos, template);
+                    assertTrue(fos.size() > inputFile.length());
+                }
+            }
+            // the layout of the A4 page is computed once and then reused by the next pages and documents
+            assertEquals(1, service.getLayoutCacheMisses());
+            assertEquals(5, service.getLayoutCacheHits());
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test(expected = PdfException.class)
+    public void testCompileInvalidSettings() throws Exception {
+        pdfWatermarkService.compile(Arrays.asList("DRAFT"), new PdfWatermarkSettings());
+    }
+
+    @Test
+    public void testServiceWatermarkPath() throws Exception {
+        String filename = "watermark-test-path.pdf";
+        File inputFile = generatePdfFromText(filename, 20);
+        File outputFile = new File("watermark-test-path-out.pdf");
+        try {
+            pdfWatermarkService.stamp(inputFile.toPath(), outputFile.toPath(), Arrays.asList("DRAFT", "user"), new PdfWatermarkSettings(true));
+            assertTrue(outputFile.length() > inputFile.length());
+            PdfReader reader = new PdfReader(outputFile.getPath());
+            assertEquals(20, reader.getNumberOfPages());
+            reader.close();
+
+            // the original file is passed through unchanged, followed by the incremental update
+            byte[] original = Files.readAllBytes(inputFile.toPath());
+            byte[] stamped = Files.readAllBytes(outputFile.toPath());
+            assertArrayEquals(original, Arrays.copyOf(stamped, original.length));
+            assertTrue(new String(stamped, original.length, stamped.length - original.length, "ISO-8859-1").contains("/Prev"));
+
+            ByteArrayOutputStream channelOutput = new ByteArrayOutputStream();
+            pdfWatermarkService.stamp(inputFile.toPath(), Channels.newChannel(channelOutput),
+                    pdfWatermarkService.compile(Arrays.asList("DRAFT", "user"), new PdfWatermarkSettings(true)));
+            reader = new PdfReader(channelOutput.toByteArray());
+            assertEquals(20, reader.getNumberOfPages());
+            reader.close();
+
+            // a rewritten document leaves the channel open as well
+            for (PdfWatermarkSettings.OutputStrategy strategy : PdfWatermarkSettings.OutputStrategy.values()) {
+                if (strategy == PdfWatermarkSettings.OutputStrategy.LINEARIZED) {
+                    continue;
+                }
+                PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+                settings.setOutputStrategy(strategy);
+                WritableByteChannel channel = Channels.newChannel(new ByteArrayOutputStream());
+                pdfWatermarkService.stamp(inputFile.toPath(), channel, pdfWatermarkService.compile(Arrays.asList("DRAFT"), settings));
+                assertTrue(strategy.name(), channel.isOpen());
+                assertEquals(1, channel.write(ByteBuffer.wrap(new byte[]{'\n'})));
+            }
+        } finally {
+            deletePDF(filename);
+            deletePDF(outputFile.getPath());
+        }
+    }
+
+    @Test
+    public void testServiceWatermarkByteBuffer() throws Exception {
+        String filename = "watermark-test-buffer.pdf";
+        File inputFile = generatePdfFromText(filename, 2);
+        try {
+            byte[] bytes = Files.readAllBytes(inputFile.toPath());
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            ByteArrayOutputStream fos = new ByteArrayOutputStream();
+            pdfWatermarkService.stamp(direct, fos, Arrays.asList("DRAFT"), new PdfWatermarkSettings(true));
+            assertEquals(0, direct.position());
+            assertTrue(fos.size() > bytes.length);
+
+            fos = new ByteArrayOutputStream();
+            pdfWatermarkService.stamp(ByteBuffer.wrap(bytes), fos, Arrays.asList("DRAFT"), new PdfWatermarkSettings(true));
+            assertTrue(fos.size() > bytes.length);
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testStampAll() throws Exception {
+        File inputFile = generatePdfFromText("watermark-test-batch.pdf", 4);
+        File missingFile = new File("watermark-test-batch-missing.pdf");
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        service.setBatchParallelism(2);
+        service.setBatchQueueCapacity(1);
+        WatermarkTemplate template = service.compile(Arrays.asList("DRAFT", "user"), new PdfWatermarkSettings(true));
+        List<WatermarkJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            jobs.add(new WatermarkJob(inputFile.toPath(), new File("watermark-test-batch-" + i + ".pdf").toPath(), template));
+        }
+        jobs.add(new WatermarkJob(missingFile.toPath(), new File("watermark-test-batch-6.pdf").toPath(), template));
+        // fails while the pages are stamped, after the original was copied to the output in append mode
+        PdfWatermarkSettings failing = new PdfWatermarkSettings(true);
+        failing.setPageSelection(PageSelection.matching((width, height, rotation) -> {
+            throw new IllegalStateException("page selection failed");
+        }));
+        jobs.add(new WatermarkJob(inputFile.toPath(), new File("watermark-test-batch-7.pdf").toPath(), service.compile(Arrays.asList("DRAFT"), failing)));
+        try {
+            BatchResult result = service.stampAll(jobs);
+            assertEquals(6, result.getSucceeded());
+            assertEquals(2, result.getFailed());
+            assertEquals(24, result.getPages());
+            assertFalse(result.getResults().get(6).isSuccessful());
+            assertFalse(result.getResults().get(7).isSuccessful());
+            assertFalse(new File("watermark-test-batch-7.pdf").exists());
+            File[] partials = new File(".").listFiles((dir, name) -> name.endsWith(".part"));
+            assertEquals(0, partials.length);
+            assertTrue(result.getPagesPerSecond() > 0);
+        } finally {
+            deletePDF(inputFile.getPath());
+            for (int i = 0; i <= 7; i++) {
+                deletePDF("watermark-test-batch-" + i + ".pdf");
+            }
+        }
+    }
+
+    @Test
+    public void testStampAsync() throws Exception {
+        String filename = "watermark-test-async.pdf";
+        File inputFile = generatePdfFromText(filename, 2);
+        ExecutorService executor = StampExecutors.newVirtualThreadPerTaskExecutor();
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            ByteArrayOutputStream fos = new ByteArrayOutputStream();
+            WatermarkTemplate template = pdfWatermarkService.compile(Arrays.asList("DRAFT"), new PdfWatermarkSettings(true));
+            pdfWatermarkService.stampAsync(fis, fos, template, executor).get();
+            assertTrue(fos.size() > inputFile.length());
+
+            CompletableFuture<Void> failed = pdfWatermarkService.stampAsync(new ByteArrayInputStream(new byte[10]),
+                    new ByteArrayOutputStream(), template, executor);
+            try {
+                failed.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof PdfException);
+            }
+        } finally {
+            executor.shutdown();
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testStampListener() throws Exception {
+        String filename = "watermark-test-listener.pdf";
+        File inputFile = generatePdfFromText(filename, 5);
+        final List<StampMetrics> stamped = new ArrayList<>();
+        final List<PdfException> failed = new ArrayList<>();
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        service.setStampListener(new StampListener() {
+            @Override
+            public void documentStamped(StampMetrics metrics) {
+                stamped.add(metrics);
+            }
+
+            @Override
+            public void documentFailed(StampMetrics metrics, PdfException error) {
+                failed.add(error);
+            }
+        });
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            ByteArrayOutputStream fos = new ByteArrayOutputStream();
+            service.stamp(fis, fos, Arrays.asList("DRAFT"), new PdfWatermarkSettings(true));
+
+            assertEquals(1, stamped.size());
+            StampMetrics metrics = stamped.get(0);
+            assertEquals(5, metrics.getPages());
+            assertEquals(5, metrics.getStampedPages());
+            assertEquals(inputFile.length(), metrics.getBytesIn());
+            assertEquals(fos.size(), metrics.getBytesOut());
+            assertEquals(4, metrics.getLayoutCacheHits());
+            assertTrue(metrics.getStageNanos(StampMetrics.Stage.PARSE) > 0);
+            assertTrue(metrics.getStageNanos(StampMetrics.Stage.SERIALIZE) > 0);
+
+            try {
+                service.stamp(new ByteArrayInputStream(new byte[10]), new ByteArrayOutputStream(), Arrays.asList("DRAFT"), new PdfWatermarkSettings(true));
+                fail();
+            } catch (PdfException e) {
+                assertEquals(1, failed.size());
+            }
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testJfrStampListener() throws Exception {
+        String filename = "watermark-test-jfr.pdf";
+        File inputFile = generatePdfFromText(filename, 2);
+        File recordingFile = new File("watermark-test.jfr");
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        service.setStampListener(new JfrStampListener());
+        try (Recording recording = new Recording(); FileInputStream fis = new FileInputStream(inputFile)) {
+            recording.enable("com.pawelgorny.pdfwatermark.Stamp");
+            recording.start();
+            service.stamp(fis, new ByteArrayOutputStream(), Arrays.asList("DRAFT"), new PdfWatermarkSettings(true));
+            recording.stop();
+            recording.dump(recordingFile.toPath());
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile.toPath());
+            assertEquals(1, events.size());
+            assertEquals(2, events.get(0).getInt("pages"));
+            long stages = 0;
+            for (String stage : new String[]{"parse", "layout", "render", "serialize"}) {
+                stages += events.get(0).getDuration(stage).toNanos();
+            }
+            assertTrue(events.get(0).getDuration().toNanos() >= stages);
+        } finally {
+            deletePDF(filename);
+            deletePDF(recordingFile.getPath());
+        }
+    }
+
+    @Test
+    public void testPageSelection() throws Exception {
+        String filename = "watermark-test-selection.pdf";
+        File inputFile = generatePdfFromText(filename, 30, PageSize.A4, PageSize.LETTER);
+        final List<StampMetrics> stamped = new ArrayList<>();
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        service.setStampListener(new StampListener() {
+            @Override
+            public void documentStamped(StampMetrics metrics) {
+                stamped.add(metrics);
+            }
+        });
+        try {
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            settings.setPageSelection(PageSelection.first(1).or(PageSelection.everyNth(10, 10)).or(PageSelection.last(1)));
+            byte[] result = stampFile(service, inputFile, Arrays.asList("DRAFT"), settings);
+
+            settings.setPageSelection(PageSelection.matching((width, height, rotation) -> width == PageSize.LETTER.getWidth()));
+            stampFile(service, inputFile, Arrays.asList("DRAFT"), settings);
+
+            assertEquals(4, stamped.get(0).getStampedPages());
+            assertEquals(15, stamped.get(1).getStampedPages());
+
+            // pages which are not selected are not rewritten by the incremental update
+            PdfReader reader = new PdfReader(result);
+            assertEquals(30, reader.getNumberOfPages());
+            reader.close();
+            assertTrue(result.length - inputFile.length() < stampFile(inputFile, Arrays.asList("DRAFT"), new PdfWatermarkSettings(true)).length - inputFile.length());
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testStampEach() throws Exception {
+        String filename = "watermark-test-each.pdf";
+        File inputFile = generatePdfFromText(filename, 10);
+        List<List<String>> recipients = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            recipients.add(Arrays.asList("CONFIDENTIAL", "recipient " + i));
+        }
+        final Map<Integer, ByteArrayOutputStream> outputs = new HashMap<>();
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            pdfWatermarkService.stampEach(fis, recipients, new PdfWatermarkSettings(true), new OutputStreamProvider() {
+                @Override
+                public OutputStream open(int index, List<String> lines) {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    outputs.put(index, output);
+                    return output;
+                }
+            });
+            byte[] original = Files.readAllBytes(inputFile.toPath());
+            assertEquals(5, outputs.size());
+            for (int i = 0; i < 5; i++) {
+                byte[] result = outputs.get(i).toByteArray();
+                assertArrayEquals(original, Arrays.copyOf(result, original.length));
+                PdfReader reader = new PdfReader(result);
+                assertEquals(10, reader.getNumberOfPages());
+                assertTrue(new String(reader.getPageContent(10), "ISO-8859-1").contains("(recipient " + i + ")"));
+                reader.close();
+            }
+        }
+
+        // fail fast: the output of the failed variant is closed, the next variants are not opened
+        final List<Integer> opened = new ArrayList<>();
+        final TrackedOutputStream failing = new TrackedOutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len) {
+                throw new IllegalStateException("disk full");
+            }
+        };
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            pdfWatermarkService.stampEach(fis, recipients, new PdfWatermarkSettings(true), (index, lines) -> {
+                opened.add(index);
+                return index == 2 ? failing : new ByteArrayOutputStream();
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(Arrays.asList(0, 1, 2), opened);
+            assertTrue(failing.closed);
+        }
+
+        // settings checked and budget reserved before the input is read
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            try {
+                pdfWatermarkService.stampEach(fis, recipients, null, (index, lines) -> new ByteArrayOutputStream());
+                fail();
+            } catch (PdfException e) {
+                assertTrue(e.getMessage().contains("settings"));
+            }
+            PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+            service.setMemoryBudget(new MemoryBudget(1024, MemoryBudget.Policy.FAIL_FAST));
+            try {
+                service.stampEach(fis, recipients, new PdfWatermarkSettings(true), (index, lines) -> new ByteArrayOutputStream());
+                fail();
+            } catch (MemoryBudgetExceededException e) {
+                assertEquals(inputFile.length(), fis.available());
+            }
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testPageTokens() throws Exception {
+        String filename = "watermark-test-tokens.pdf";
+        File inputFile = generatePdfFromText(filename, 12);
+        try {
+            for (PdfWatermarkSettings.RenderMode renderMode : new PdfWatermarkSettings.RenderMode[]{PdfWatermarkSettings.RenderMode.PAGE_CONTENT, PdfWatermarkSettings.RenderMode.SHARED_XOBJECT}) {
+                PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+                settings.setRenderMode(renderMode);
+                byte[] result = stampFile(inputFile, Arrays.asList("CONFIDENTIAL {user}", "page {page} of {pages}"), settings);
+                PdfReader reader = new PdfReader(result);
+                for (int page : new int[]{1, 7, 12}) {
+                    String content = new String(reader.getPageContent(page), "ISO-8859-1");
+                    if (renderMode == PdfWatermarkSettings.RenderMode.PAGE_CONTENT) {
+                        assertTrue(content.contains("(page " + page + " of 12)"));
+                        assertTrue(content.contains("(CONFIDENTIAL {user})"));
+                    }
+                    assertFalse(content.contains("{page}"));
+                }
+                reader.close();
+            }
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testTokenLineFitsWidestExpansion() {
+        FontMetrics fontMetrics = new FontMetrics();
+        BaseFont baseFont = fontMetrics.getBaseFont(Font.HELVETICA, Font.BOLD);
+        WatermarkLine line = WatermarkLine.parse("page {page} of {pages}, {timestamp}");
+        assertTrue(line.isPageDependent());
+        assertEquals("page 3 of 10, 2020-01-01T10:00:00+01:00", line.resolve(3, 10, "2020-01-01T10:00:00+01:00"));
+        assertTrue(line.getUnitWidth(fontMetrics, baseFont)
+                >= fontMetrics.getUnitWidth(baseFont, line.resolve(99999, 99999, "2020-12-31T23:59:59+01:00")));
+        WatermarkLine timestamp = WatermarkLine.parse("{timestamp}");
+        assertTrue(timestamp.isDynamic());
+        assertFalse(timestamp.isPageDependent());
+    }
+
+    @Test
+    public void testOutputStrategy() throws Exception {
+        String filename = "watermark-test-strategy.pdf";
+        File inputFile = generatePdfFromText(filename, 20);
+        File restamped = new File("watermark-test-strategy-restamped.pdf");
+        File rewritten = new File("watermark-test-strategy-rewritten.pdf");
+        List<String> lines = Arrays.asList("DRAFT", "user");
+        try {
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            Files.copy(inputFile.toPath(), restamped.toPath());
+            for (int i = 0; i < 3; i++) {
+                Files.write(restamped.toPath(), stampFile(restamped, lines, settings));
+            }
+            PdfReader reader = new PdfReader(restamped.getPath());
+            assertEquals(3, PdfWatermarkServiceImpl.countIncrementalUpdates(reader));
+            reader.close();
+
+            settings.setOutputStrategy(PdfWatermarkSettings.OutputStrategy.REWRITE);
+            pdfWatermarkService.stamp(restamped.toPath(), rewritten.toPath(), lines, settings);
+            assertTrue(rewritten.length() < restamped.length());
+            reader = new PdfReader(rewritten.getPath());
+            assertEquals(20, reader.getNumberOfPages());
+            assertEquals(0, PdfWatermarkServiceImpl.countIncrementalUpdates(reader));
+            reader.close();
+
+            // a small document is rewritten by AUTO instead of being appended to
+            settings.setOutputStrategy(PdfWatermarkSettings.OutputStrategy.AUTO);
+            byte[] original = Files.readAllBytes(inputFile.toPath());
+            byte[] result = stampFile(inputFile, lines, settings);
+            assertFalse(Arrays.equals(original, Arrays.copyOf(result, original.length)));
+        } finally {
+            deletePDF(filename);
+            restamped.delete();
+            rewritten.delete();
+        }
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        service.setWarmUpMaxDuration(Duration.ofSeconds(5));
+        WarmUpReport report = service.warmUp();
+        assertEquals(PdfWatermarkSettings.WatermarkPosition.values().length, report.getTemplates());
+        assertTrue(report.getRounds() >= 1);
+        assertTrue(report.getElapsedNanos() >= report.getFirstRoundNanos());
+        assertSame(report, service.getWarmUpReport());
+
+        // the external linearizer is not run by the warm-up
+        service.setLinearizer((input, output) -> {
+            throw new IOException("not expected");
+        });
+        PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+        settings.setOutputStrategy(PdfWatermarkSettings.OutputStrategy.LINEARIZED);
+        settings.setRenderMode(PdfWatermarkSettings.RenderMode.REPLACEABLE_XOBJECT);
+        assertEquals(1, service.warmUp(settings).getTemplates());
+        assertEquals(PdfWatermarkSettings.OutputStrategy.LINEARIZED, settings.getOutputStrategy());
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test",
+                Collections.<String, Object>singletonMap("pdfwatermark.warmUpOnStartup", "true")));
+        context.register(PdfWatermarkServiceImpl.class);
+        context.refresh();
+        try {
+            assertTrue(context.getBean(PdfWatermarkServiceImpl.class).getWarmUpReport() != null);
+        } finally {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testSyntheticCorpus() throws Exception {
+        byte[] document = SyntheticCorpus.generate(new SyntheticCorpus.Spec(6, true, true, 1, 2, 7));
+        PdfReader reader = new PdfReader(document);
+        assertEquals(6, reader.getNumberOfPages());
+        assertEquals(2, PdfWatermarkServiceImpl.countIncrementalUpdates(reader));
+        reader.close();
+
+        for (byte[] generated : SyntheticCorpus.generate(SyntheticCorpus.mix(5, 1))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            pdfWatermarkService.stamp(new ByteArrayInputStream(generated), output, Arrays.asList("DRAFT", "{page}"), new PdfWatermarkSettings(true));
+            reader = new PdfReader(output.toByteArray());
+            assertEquals(new PdfReader(generated).getNumberOfPages(), reader.getNumberOfPages());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testLinearizedOutput() throws Exception {
+        String filename = "watermark-test-linearized.pdf";
+        File inputFile = generatePdfFromText(filename, 5);
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        final List<byte[]> linearizerInputs = new ArrayList<>();
+        service.setLinearizer((input, output) -> {
+            linearizerInputs.add(Files.readAllBytes(input));
+            Files.copy(input, output);
+        });
+        try {
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            settings.setOutputStrategy(PdfWatermarkSettings.OutputStrategy.LINEARIZED);
+            TrackedOutputStream output = new TrackedOutputStream();
+            service.stamp(new FileInputStream(inputFile), output, Arrays.asList("DRAFT"), settings);
+            assertTrue(output.closed);
+            assertEquals(1, linearizerInputs.size());
+            assertArrayEquals(linearizerInputs.get(0), output.toByteArray());
+            // the linearizer is given a rewritten document, not an incremental update
+            PdfReader reader = new PdfReader(output.toByteArray());
+            assertEquals(5, reader.getNumberOfPages());
+            assertEquals(0, PdfWatermarkServiceImpl.countIncrementalUpdates(reader));
+            reader.close();
+
+            service.setLinearizer(new QpdfLinearizer("/nonexistent/qpdf", Duration.ofSeconds(5)));
+            try {
+                service.stamp(new FileInputStream(inputFile), new ByteArrayOutputStream(), Arrays.asList("DRAFT"), settings);
+                fail();
+            } catch (PdfException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testTiledWatermark() throws Exception {
+        String filename = "watermark-test-tiled.pdf";
+        File inputFile = generatePdfFromText(filename, 6, PageSize.A4, PageSize.A4.rotate());
+        List<String> lines = Arrays.asList("recipient@example.com");
+        try {
+            for (PdfWatermarkSettings.RenderMode renderMode : new PdfWatermarkSettings.RenderMode[]{PdfWatermarkSettings.RenderMode.PAGE_CONTENT, PdfWatermarkSettings.RenderMode.SHARED_XOBJECT}) {
+                List<Integer> contentLengths = null;
+                // dense and sparse grid
+                for (float spacing : new float[]{2, 144}) {
+                    PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+                    settings.setWatermarkPosition(PdfWatermarkSettings.WatermarkPosition.TILED);
+                    settings.setTileSpacing(spacing);
+                    settings.setRenderMode(renderMode);
+                    PdfReader reader = new PdfReader(stampFile(inputFile, lines, settings));
+                    List<Integer> lengths = new ArrayList<>();
+                    Set<Integer> patterns = new HashSet<>();
+                    for (int page = 1; page <= 6; page++) {
+                        byte[] content = reader.getPageContent(page);
+                        lengths.add(content.length);
+                        if (renderMode == PdfWatermarkSettings.RenderMode.PAGE_CONTENT) {
+                            assertTrue(new String(content, "ISO-8859-1").contains("/Pattern cs"));
+                            PdfDictionary patternResources = reader.getPageN(page).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.PATTERN);
+                            for (PdfName name : patternResources.getKeys()) {
+                                patterns.add(patternResources.getAsIndirectObject(name).getNumber());
+                                String cell = new String(PdfReader.getStreamBytes((PRStream) patternResources.getAsStream(name)), "ISO-8859-1");
+                                // the text is drawn once, in the cell
+                                assertEquals(cell.indexOf("(recipient@example.com)"), cell.lastIndexOf("(recipient@example.com)"));
+                                assertTrue(cell.contains("(recipient@example.com)"));
+                            }
+                        }
+                    }
+                    if (renderMode == PdfWatermarkSettings.RenderMode.PAGE_CONTENT) {
+                        // one pattern per page geometry
+                        assertEquals(2, patterns.size());
+                    }
+                    if (contentLengths != null) {
+                        assertEquals(contentLengths, lengths);
+                    }
+                    contentLengths = lengths;
+                    reader.close();
+                }
+            }
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testImageWatermark() throws Exception {
+        String filename = "watermark-test-image.pdf";
+        File inputFile = generatePdfFromText(filename, 5, PageSize.A4, PageSize.A4.rotate());
+        BufferedImage logo = new BufferedImage(120, 40, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(logo, "png", png);
+        try {
+            for (PdfWatermarkSettings.WatermarkPosition position : PdfWatermarkSettings.WatermarkPosition.values()) {
+                PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+                settings.setWatermarkPosition(position);
+                settings.setImage(png.toByteArray());
+                byte[] result = stampFile(inputFile, Collections.<String>emptyList(), settings);
+                PdfReader reader = new PdfReader(result);
+                Set<Integer> images = new HashSet<>();
+                for (int page = 1; page <= 5; page++) {
+                    PdfDictionary xObjects = reader.getPageN(page).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+                    for (PdfName name : xObjects.getKeys()) {
+                        images.add(xObjects.getAsIndirectObject(name).getNumber());
+                    }
+                }
+                // decoded once, written once into the document and referenced from every page
+                assertEquals(position.name(), 1, images.size());
+                reader.close();
+            }
+            PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            settings.setImage(png.toByteArray());
+            WatermarkTemplate first = service.compile(Arrays.asList("DRAFT"), settings);
+            settings.setImage(png.toByteArray());
+            WatermarkTemplate second = service.compile(Arrays.asList("user"), settings);
+            assertSame(first.getImage(), second.getImage());
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testIdempotentStamp() throws Exception {
+        String filename = "watermark-test-idempotent.pdf";
+        File inputFile = generatePdfFromText(filename, 4);
+        File once = new File("watermark-test-idempotent-once.pdf");
+        File twice = new File("watermark-test-idempotent-twice.pdf");
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        final List<StampMetrics> stamped = Collections.synchronizedList(new ArrayList<StampMetrics>());
+        service.setStampListener(new StampListener() {
+            @Override
+            public void documentStamped(StampMetrics metrics) {
+                stamped.add(metrics);
+            }
+        });
+        List<String> lines = Arrays.asList("DRAFT", "user");
+        try {
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            settings.setIdempotent(true);
+            byte[] first = stampFile(service, inputFile, lines, settings);
+            PdfReader reader = new PdfReader(first);
+            assertEquals(service.compile(lines, settings).getFingerprint(), reader.getInfo().get(WatermarkTemplate.MARKER_KEY));
+            reader.close();
+            Files.write(once.toPath(), first);
+
+            // a retry of the same document: copied through, no new incremental update
+            assertArrayEquals(first, stampFile(service, once, lines, settings));
+            service.stamp(once.toPath(), twice.toPath(), lines, settings);
+            assertArrayEquals(first, Files.readAllBytes(twice.toPath()));
+            settings.setOutputStrategy(PdfWatermarkSettings.OutputStrategy.REWRITE);
+            assertArrayEquals(first, stampFile(service, once, lines, settings));
+            assertEquals(4, stamped.size());
+            assertFalse(stamped.get(0).isAlreadyStamped());
+            assertTrue(stamped.get(1).isAlreadyStamped());
+            assertTrue(stamped.get(2).isAlreadyStamped());
+            assertEquals(0, stamped.get(3).getStampedPages());
+
+            // another watermark is stamped
+            List<String> otherLines = Arrays.asList("DRAFT", "other user");
+            reader = new PdfReader(stampFile(service, once, otherLines, settings));
+            assertEquals(service.compile(otherLines, settings).getFingerprint(), reader.getInfo().get(WatermarkTemplate.MARKER_KEY));
+            reader.close();
+            assertFalse(stamped.get(4).isAlreadyStamped());
+
+            // a skipped document is closed as a stamped one
+            TrackedOutputStream skipped = new TrackedOutputStream();
+            service.stamp(new ByteArrayInputStream(first), skipped, lines, settings);
+            assertTrue(stamped.get(5).isAlreadyStamped());
+            assertTrue(skipped.closed);
+            assertArrayEquals(first, skipped.toByteArray());
+
+            // two predicates give the same fingerprint, the second one would skip the pages selected by the first one
+            PdfWatermarkSettings letter = new PdfWatermarkSettings(settings);
+            letter.setPageSelection(PageSelection.matching((width, height, rotation) -> width == PageSize.LETTER.getWidth()));
+            PdfWatermarkSettings rotated = new PdfWatermarkSettings(settings);
+            rotated.setPageSelection(PageSelection.first(1).or(PageSelection.matching((width, height, rotation) -> rotation != 0)));
+            for (PdfWatermarkSettings predicate : Arrays.asList(letter, rotated)) {
+                try {
+                    service.compile(lines, predicate);
+                    fail();
+                } catch (PdfException expected) {
+                }
+            }
+            letter.setIdempotent(false);
+            service.compile(lines, letter);
+        } finally {
+            deletePDF(filename);
+            once.delete();
+            twice.delete();
+        }
+    }
+
+    @Test
+    public void testReplaceWatermark() throws Exception {
+        String filename = "watermark-test-replace.pdf";
+        File inputFile = generatePdfFromText(filename, 30, PageSize.A4, PageSize.LETTER);
+        try {
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            settings.setRenderMode(PdfWatermarkSettings.RenderMode.REPLACEABLE_XOBJECT);
+            byte[] draft = stampFile(inputFile, Arrays.asList("DRAFT"), settings);
+            PdfReader reader = new PdfReader(draft);
+            assertTrue(reader.getCatalog().contains(PdfName.OCPROPERTIES));
+            reader.close();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            pdfWatermarkService.replaceWatermark(new ByteArrayInputStream(draft), output, Arrays.asList("FINAL"), settings);
+            byte[] result = output.toByteArray();
+            assertArrayEquals(draft, Arrays.copyOf(result, draft.length));
+            // two page sizes: two XObjects rewritten, whatever the number of pages
+            assertTrue(result.length - draft.length < 8192);
+
+            PdfReader before = new PdfReader(draft);
+            reader = new PdfReader(result);
+            for (int page : new int[]{1, 2, 30}) {
+                assertArrayEquals(before.getPageContent(page), reader.getPageContent(page));
+                PdfDictionary xObjects = reader.getPageN(page).getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+                PdfDictionary watermark = xObjects.getAsStream(xObjects.getKeys().iterator().next());
+                PdfDictionary inner = watermark.getAsDict(PdfName.RESOURCES).getAsDict(PdfName.XOBJECT);
+                PRStream content = (PRStream) inner.getAsStream(inner.getKeys().iterator().next());
+                assertTrue(new String(PdfReader.getStreamBytes(content), "ISO-8859-1").contains("(FINAL)"));
+                assertTrue(watermark.contains(PdfName.OC));
+            }
+            before.close();
+            reader.close();
+
+            // same budget, deadline and listener as a stamp
+            PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+            MemoryBudget budget = new MemoryBudget(1L << 30, MemoryBudget.Policy.FAIL_FAST);
+            service.setMemoryBudget(budget);
+            final List<StampMetrics> stamped = new ArrayList<>();
+            final List<PdfException> failures = new ArrayList<>();
+            service.setStampListener(new StampListener() {
+                @Override
+                public void documentStamped(StampMetrics metrics) {
+                    stamped.add(metrics);
+                }
+
+                @Override
+                public void documentFailed(StampMetrics metrics, PdfException e) {
+                    failures.add(e);
+                }
+            });
+            WatermarkTemplate template = service.compile(Arrays.asList("FINAL"), settings);
+            service.replaceWatermark(new ByteArrayInputStream(draft), new ByteArrayOutputStream(), template);
+            assertEquals(1, stamped.size());
+            assertEquals(30, stamped.get(0).getPages());
+            assertEquals(0, budget.getUsedBytes());
+            try {
+                service.replaceWatermark(new ByteArrayInputStream(draft), new ByteArrayOutputStream(), template, StampDeadline.after(Duration.ZERO));
+                fail();
+            } catch (StampCancelledException e) {
+                assertEquals(Collections.<PdfException>singletonList(e), failures);
+            }
+            assertEquals(0, budget.getUsedBytes());
+
+            try {
+                pdfWatermarkService.replaceWatermark(new FileInputStream(inputFile), new ByteArrayOutputStream(), Arrays.asList("FINAL"), settings);
+                fail();
+            } catch (PdfException e) {
+                assertTrue(e.getMessage().contains("no replaceable watermark"));
+            }
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        String filename = "watermark-test-deadline.pdf";
+        File inputFile = generatePdfFromText(filename, 10);
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        final List<PdfException> failures = new ArrayList<>();
+        service.setStampListener(new StampListener() {
+            @Override
+            public void documentFailed(StampMetrics metrics, PdfException e) {
+                failures.add(e);
+            }
+        });
+        try {
+            WatermarkTemplate template = service.compile(Arrays.asList("DRAFT"), new PdfWatermarkSettings(true));
+            try {
+                service.stamp(new FileInputStream(inputFile), new ByteArrayOutputStream(), template, StampDeadline.after(Duration.ZERO));
+                fail();
+            } catch (StampCancelledException e) {
+                assertTrue(e.isDeadlineExceeded());
+                assertTrue(e.getMessage().contains("parsing"));
+            }
+
+            // cancelled from another thread while the pages are stamped
+            final StampDeadline deadline = StampDeadline.cancellable();
+            final int[] pagesRead = {0};
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            settings.setPageSelection(PageSelection.matching((width, height, rotation) -> {
+                if (++pagesRead[0] == 5) {
+                    deadline.cancel();
+                }
+                return true;
+            }));
+            try {
+                service.stamp(inputFile.toPath(), new File(filename + ".out").toPath(), service.compile(Arrays.asList("DRAFT"), settings), deadline);
+                fail();
+            } catch (StampCancelledException e) {
+                assertFalse(e.isDeadlineExceeded());
+                assertEquals("Stamping cancelled before page 5", e.getMessage());
+            }
+            assertFalse(new File(filename + ".out").exists());
+            assertEquals(2, failures.size());
+
+            service.stamp(new FileInputStream(inputFile), new ByteArrayOutputStream(), template, StampDeadline.after(Duration.ofMinutes(1)));
+        } finally {
+            deletePDF(filename);
+            deletePDF(filename + ".out");
+        }
+    }
+
+    @Test
+    public void testPublisherStamp() throws Exception {
+        String filename = "watermark-test-publisher.pdf";
+        File inputFile = generatePdfFromText(filename, 20);
+        PdfWatermarkServiceImpl service = new PdfWatermarkServiceImpl();
+        try {
+            byte[] original = Files.readAllBytes(inputFile.toPath());
+            PdfWatermarkSettings settings = new PdfWatermarkSettings(true);
+            WatermarkTemplate template = service.compile(Arrays.asList("DRAFT"), settings);
+            // kept in memory, then spooled to disk
+            for (long threshold : new long[]{Long.MAX_VALUE, 1024}) {
+                service.setStreamingMemoryThreshold(threshold);
+                byte[] result = collect(service.stamp(publish(original, 1000), template)).get(30, TimeUnit.SECONDS);
+                assertArrayEquals(original, Arrays.copyOf(result, original.length));
+                PdfReader reader = new PdfReader(result);
+                assertEquals(20, reader.getNumberOfPages());
+                assertTrue(new String(reader.getPageContent(20), "ISO-8859-1").contains("(DRAFT)"));
+                reader.close();
+            }
+
+            settings.setOutputStrategy(PdfWatermarkSettings.OutputStrategy.REWRITE);
+            PdfReader reader = new PdfReader(collect(service.stamp(publish(original, 4096), Arrays.asList("DRAFT"), settings)).get(30, TimeUnit.SECONDS));
+            assertTrue(new String(reader.getPageContent(1), "ISO-8859-1").contains("(DRAFT)"));
+            reader.close();
+
+            try {
+                collect(service.stamp(publish(new byte[100], 10), template)).get(30, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof PdfException);
+            }
+
+            Flow.Publisher<ByteBuffer> single = service.stamp(publish(original, 1000), template);
+            collect(single).get(30, TimeUnit.SECONDS);
+            try {
+                collect(single).get(30, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            deletePDF(filename);
+        }
+    }
+
+    /**
+     * Records whether the service closed the output, as the stamper does
+     */
+    static class TrackedOutputStream extends ByteArrayOutputStream {
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static Flow.Publisher<ByteBuffer> publish(byte[] bytes, int chunkSize) {
+        return subscriber -> {
+            SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>();
+            publisher.subscribe(subscriber);
+            for (int position = 0; position < bytes.length; position += chunkSize) {
+                publisher.submit(ByteBuffer.wrap(bytes, position, Math.min(chunkSize, bytes.length - position)));
+            }
+            publisher.close();
+        };
+    }
+
+    /**
+     * Requests one buffer at a time
+     */
+    private static CompletableFuture<byte[]> collect(Flow.Publisher<ByteBuffer> publisher) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            private Flow.Subscription subscription;
+
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            public void onNext(ByteBuffer buffer) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                output.write(bytes, 0, bytes.length);
+                subscription.request(1);
+            }
+
+            public void onError(Throwable throwable) {
+                result.completeExceptionally(throwable);
+            }
+
+            public void onComplete() {
+                result.complete(output.toByteArray());
+            }
+        });
+        return result;
+    }
+
+    static byte[] stampFile(File inputFile, List<String> lines, PdfWatermarkSettings settings) throws Exception {
+        return stampFile(pdfWatermarkService, inputFile, lines, settings);
+    }
+
+    static byte[] stampFile(PDFWatermarkService service, File inputFile, List<String> lines, PdfWatermarkSettings settings) throws Exception {
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            ByteArrayOutputStream fos = new ByteArrayOutputStream();
+            service.stamp(fis, fos, lines, settings);
+            return fos.toByteArray();
+        }
+    }
+
 //    public static boolean containsText(InputStream fileIn, String watermarkTextLine, boolean allPages) throws IOException {
 //
 //        PdfReader reader = new PdfReader(fileIn);
@@ -193,8 +1159,19 @@ public class PDFWatermarkServiceTest {
 
 
     public static File generatePdfFromText(String filename) throws PdfException {
+        return generatePdfFromText(filename, 1);
+    }
+
+    public static File generatePdfFromText(String filename, int pages) throws PdfException {
+        return generatePdfFromText(filename, pages, PageSize.A4);
+    }
 
-        Document document = new Document(PageSize.A4);
+    /**
+     * Generates a document with the given number of pages, page sizes are used in turns
+     */
+    public static File generatePdfFromText(String filename, int pages, Rectangle... pageSizes) throws PdfException {
+
+        Document document = new Document(pageSizes[0]);
         PdfWriter pdfWriter = null;
         File file = null;
 
@@ -207,10 +1184,16 @@ public class PDFWatermarkServiceTest {
 
             document.open();
 
-            Paragraph paragraph = new Paragraph();
-            paragraph.add("Hello World");
-            paragraph.setAlignment(Element.ALIGN_CENTER);
-            document.add(paragraph);
+            for (int page = 1; page <= pages; page++) {
+                if (page > 1) {
+                    document.setPageSize(pageSizes[(page - 1) % pageSizes.length]);
+                    document.newPage();
+                }
+                Paragraph paragraph = new Paragraph();
+                paragraph.add("Hello World");
+                paragraph.setAlignment(Element.ALIGN_CENTER);
+                document.add(paragraph);
+            }
 
             document.close();
 
@@ -0,0 +1,75 @@
+package com.pawelgorny.pdfwatermark;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PageSelectionTest {
+
+    private static final PageSelection.LazyGeometry A4_PORTRAIT = page -> new PageGeometry(595, 842, page % 3 == 0 ? 90 : 0, PdfWatermarkSettings.WatermarkPosition.DIAGONAL);
+
+    @Test
+    public void testCoverEveryTenthAndLast() {
+        PageSelection selection = PageSelection.first(1).or(PageSelection.everyNth(10, 10)).or(PageSelection.last(1));
+        assertEquals(Arrays.asList(1, 10, 20, 30, 35), selected(selection, 35));
+    }
+
+    @Test
+    public void testRangesOddEvenAndPages() {
+        assertEquals(Arrays.asList(3, 4, 5), selected(PageSelection.range(3, 5), 10));
+        assertEquals(Arrays.asList(1, 3, 5), selected(PageSelection.odd(), 6));
+        assertEquals(Arrays.asList(2, 4, 6), selected(PageSelection.even(), 6));
+        assertEquals(Arrays.asList(2, 7), selected(PageSelection.pages(7, 2), 10));
+        assertEquals(Arrays.asList(8, 9, 10), selected(PageSelection.last(3), 10));
+        assertEquals(Arrays.asList(2, 4), selected(PageSelection.even().and(PageSelection.first(5)), 10));
+        assertEquals(Arrays.asList(2, 3), selected(PageSelection.first(1).negate(), 3));
+    }
+
+    @Test
+    public void testPredicate() {
+        PageSelection rotated = PageSelection.matching((width, height, rotation) -> rotation != 0);
+        assertEquals(Arrays.asList(3, 6, 9), selected(rotated, 10));
+        assertTrue(rotated.hasPredicate());
+        assertTrue(PageSelection.first(1).or(rotated.negate()).hasPredicate());
+        assertFalse(PageSelection.first(1).or(PageSelection.last(1)).hasPredicate());
+    }
+
+    @Test
+    public void testInvalidCount() {
+        for (int count : new int[]{0, -1}) {
+            try {
+                PageSelection.first(count);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                PageSelection.last(count);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testEquality() {
+        assertEquals(PageSelection.first(1).or(PageSelection.last(1)), PageSelection.first(1).or(PageSelection.last(1)));
+        assertEquals(PageSelection.pages(2, 1).hashCode(), PageSelection.pages(1, 2).hashCode());
+    }
+
+    private static List<Integer> selected(PageSelection selection, int pageCount) {
+        List<Integer> pages = new ArrayList<>();
+        for (int page = 1; page <= pageCount; page++) {
+            if (selection.selects(page, pageCount, A4_PORTRAIT)) {
+                pages.add(page);
+            }
+        }
+        return pages;
+    }
+}
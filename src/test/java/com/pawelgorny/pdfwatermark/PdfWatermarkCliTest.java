@@ -0,0 +1,148 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.pdf.PdfReader;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PdfWatermarkCliTest {
+
+    @Test
+    public void testRunAndResume() throws Exception {
+        Path root = Files.createTempDirectory("pdfwatermark-cli");
+        Path input = Files.createDirectories(root.resolve("in/a/b"));
+        Path output = root.resolve("out");
+        Path settings = root.resolve("settings.properties");
+        Files.write(settings, Arrays.asList("line.1=CONFIDENTIAL", "line.2=page {page} of {pages}",
+                "position=TOP", "font.family=TIMES_ROMAN", "font.color=#FF0000", "info.Creator=cli"));
+        try {
+            for (int i = 0; i < 3; i++) {
+                String filename = "cli-" + i + ".pdf";
+                File file = PDFWatermarkServiceTest.generatePdfFromText(filename, i + 1);
+                Files.move(file.toPath(), (i == 0 ? root.resolve("in") : input).resolve(filename));
+            }
+            Files.write(input.resolve("notes.txt"), Arrays.asList("not a pdf"));
+
+            ByteArrayOutputStream console = new ByteArrayOutputStream();
+            PdfWatermarkCli.Progress progress = PdfWatermarkCli.run(root.resolve("in"), output, settings, 2, new PrintStream(console));
+            assertEquals(3, progress.stamped.get());
+            assertEquals(0, progress.failed.get());
+            assertEquals(6, progress.pages.get());
+            assertEquals(3, progress.latency.getCount());
+            assertTrue(console.toString().contains("3 stamped, 0 skipped, 0 failed, 6 pages"));
+
+            PdfReader reader = new PdfReader(output.resolve("a/b/cli-2.pdf").toString());
+            assertEquals(3, reader.getNumberOfPages());
+            assertEquals("cli", reader.getInfo().get("Creator"));
+            reader.close();
+            assertEquals(0, partialFiles(output));
+            assertFalse(Files.exists(output.resolve("a/b/notes.txt")));
+
+            // an interrupted run is resumed: existing outputs are skipped
+            Files.delete(output.resolve("cli-0.pdf"));
+            progress = PdfWatermarkCli.run(root.resolve("in"), output, settings, 2, new PrintStream(new ByteArrayOutputStream()));
+            assertEquals(1, progress.stamped.get());
+            assertEquals(2, progress.skipped.get());
+        } finally {
+            try (Stream<Path> files = Files.walk(root)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedFileAndSettings() throws Exception {
+        Path root = Files.createTempDirectory("pdfwatermark-cli");
+        Path input = Files.createDirectories(root.resolve("in"));
+        Path output = root.resolve("out");
+        Path settings = root.resolve("settings.properties");
+        BufferedImage image = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+        ImageIO.write(image, "png", root.resolve("logo.png").toFile());
+        Files.write(settings, Arrays.asList("line.1=CONFIDENTIAL", "idempotent=true", "image=logo.png", "pageSelection=range:2-3"));
+        try {
+            File file = PDFWatermarkServiceTest.generatePdfFromText("cli-valid.pdf", 4);
+            Files.move(file.toPath(), input.resolve("valid.pdf"));
+            // OpenPDF fails with a NullPointerException on this file, not with an IOException
+            Files.write(input.resolve("broken.pdf"), ("%PDF-1.4\n1 0 obj << /Type /Catalog /Pages 2 0 R >> endobj\n"
+                    + "trailer << /Root 1 0 R >>\n%%EOF").getBytes(StandardCharsets.ISO_8859_1));
+
+            PdfWatermarkCli.Progress progress = PdfWatermarkCli.run(input, output, settings, 1, new PrintStream(new ByteArrayOutputStream()));
+            assertEquals(1, progress.stamped.get());
+            assertEquals(1, progress.failed.get());
+            assertEquals(2, progress.pages.get());
+            assertFalse(Files.exists(output.resolve("broken.pdf")));
+            assertEquals(0, partialFiles(output));
+
+            PdfReader reader = new PdfReader(output.resolve("valid.pdf").toString());
+            assertTrue(reader.getInfo().containsKey(WatermarkTemplate.MARKER_KEY));
+            reader.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(root)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testArguments() throws Exception {
+        assertEquals(4, PdfWatermarkCli.threads(" 4"));
+        assertEquals(0, PdfWatermarkCli.threads("four"));
+        assertEquals(PageSelection.pages(1, 3, 5), PdfWatermarkCli.pageSelection("pages:5,1,3"));
+        assertEquals(PageSelection.everyNth(2, 1), PdfWatermarkCli.pageSelection("every:2"));
+        assertEquals(PageSelection.range(2, 4), PdfWatermarkCli.pageSelection("range:2-4"));
+        try {
+            PdfWatermarkCli.pageSelection("middle");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        Properties properties = new Properties();
+        properties.setProperty("font.family", "COMIC_SANS");
+        try {
+            PdfWatermarkCli.settings(properties, Paths.get("."));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("COMIC_SANS"));
+        }
+    }
+
+    private static long partialFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".part")).count();
+        }
+    }
+
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.recordNanos(millis * 1000000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500000, histogram.getPercentileMicros(50), 500000 * 0.016);
+        assertEquals(990000, histogram.getPercentileMicros(99), 990000 * 0.016);
+        assertEquals(1000000, histogram.getPercentileMicros(100));
+        for (long micros = 0; micros < 10000000; micros = micros * 3 / 2 + 1) {
+            int index = LatencyHistogram.index(micros);
+            assertTrue(micros <= LatencyHistogram.highestValue(index));
+            assertTrue(index == 0 || micros > LatencyHistogram.highestValue(index - 1));
+        }
+    }
+}
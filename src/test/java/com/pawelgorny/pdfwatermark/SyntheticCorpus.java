@@ -0,0 +1,217 @@
+package com.pawelgorny.pdfwatermark;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.Font;
+import com.lowagie.text.Image;
+import com.lowagie.text.PageSize;
+import com.lowagie.text.Paragraph;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.BaseFont;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfNumber;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfWriter;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates in memory documents resembling a production input: page counts, mixed sizes and rotations, an embedded
+ * TrueType font, images and incremental updates written by earlier tools. The same seed gives the same corpus.
+ */
+final class SyntheticCorpus {
+
+    private static final Rectangle[] PAGE_SIZES = {PageSize.A4, PageSize.LETTER, PageSize.A4.rotate(), PageSize.A3, PageSize.LEGAL};
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+    private static final int[] PAGE_COUNTS = {1, 2, 5, 10, 20, 50, 200};
+    /**
+     * Bundled in the OpenPDF jar, so the corpus does not depend on the fonts of the machine
+     */
+    private static final String EMBEDDED_FONT = "font-fallback/LiberationSans-Regular.ttf";
+    private static final String TEXT = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore. ";
+
+    private static byte[] fontFile;
+
+    private SyntheticCorpus() {
+    }
+
+    /**
+     * Shape of a generated document
+     */
+    static final class Spec {
+        final int pages;
+        final boolean mixedPages;
+        final boolean embeddedFont;
+        final int images;
+        final int previousUpdates;
+        final long seed;
+
+        /**
+         * @param pages           number of pages
+         * @param mixedPages      true for pages of mixed sizes and rotations, false for A4 portrait pages only
+         * @param embeddedFont    true to write the text with an embedded TrueType font subset, false with Helvetica
+         * @param images          number of images per page
+         * @param previousUpdates number of incremental updates appended after the document was written
+         * @param seed            seed of the text and image content
+         */
+        Spec(int pages, boolean mixedPages, boolean embeddedFont, int images, int previousUpdates, long seed) {
+            this.pages = pages;
+            this.mixedPages = mixedPages;
+            this.embeddedFont = embeddedFont;
+            this.images = images;
+            this.previousUpdates = previousUpdates;
+            this.seed = seed;
+        }
+
+        @Override
+        public String toString() {
+            return pages + " pages" + (mixedPages ? ", mixed sizes" : "") + (embeddedFont ? ", embedded font" : "")
+                    + ", " + images + " images per page, " + previousUpdates + " updates";
+        }
+    }
+
+    /**
+     * @param documents number of document shapes
+     * @param seed      seed of the random mix
+     * @return shapes drawn with a bias to small documents, as in most production traffic
+     */
+    static List<Spec> mix(int documents, long seed) {
+        Random random = new Random(seed);
+        List<Spec> specs = new ArrayList<>(documents);
+        for (int i = 0; i < documents; i++) {
+            int pageCount = PAGE_COUNTS[Math.min(PAGE_COUNTS.length - 1, (int) Math.abs(random.nextGaussian() * 2.5))];
+            specs.add(new Spec(pageCount, random.nextBoolean(), random.nextInt(3) == 0, random.nextInt(4) == 0 ? 1 + random.nextInt(2) : 0,
+                    random.nextInt(5) == 0 ? 1 + random.nextInt(4) : 0, random.nextLong()));
+        }
+        return specs;
+    }
+
+    /**
+     * @return the PDF files of the shapes
+     */
+    static List<byte[]> generate(List<Spec> specs) throws DocumentException, IOException {
+        List<byte[]> documents = new ArrayList<>(specs.size());
+        for (Spec spec : specs) {
+            documents.add(generate(spec));
+        }
+        return documents;
+    }
+
+    static byte[] generate(Spec spec) throws DocumentException, IOException {
+        Random random = new Random(spec.seed);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Document document = new Document(PageSize.A4);
+        PdfWriter.getInstance(document, output);
+        document.open();
+        Font font = spec.embeddedFont
+                ? new Font(BaseFont.createFont(EMBEDDED_FONT, BaseFont.IDENTITY_H, BaseFont.EMBEDDED, true, fontFile(), null), 11)
+                : new Font(Font.HELVETICA, 11);
+        for (int page = 1; page <= spec.pages; page++) {
+            if (page > 1) {
+                if (spec.mixedPages) {
+                    document.setPageSize(PAGE_SIZES[random.nextInt(PAGE_SIZES.length)]);
+                }
+                document.newPage();
+            }
+            document.add(new Paragraph("Synthetic page " + page + " of " + spec.pages, font));
+            document.add(new Paragraph(text(random), font));
+            for (int i = 0; i < spec.images; i++) {
+                Image image = Image.getInstance(image(random), null);
+                image.scaleToFit(200, 150);
+                document.add(image);
+            }
+        }
+        document.close();
+        byte[] pdf = output.toByteArray();
+        if (spec.mixedPages) {
+            pdf = rotate(pdf, random);
+        }
+        for (int update = 1; update <= spec.previousUpdates; update++) {
+            pdf = appendUpdate(pdf, update);
+        }
+        return pdf;
+    }
+
+    private static String text(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 3 + random.nextInt(20); i > 0; i--) {
+            text.append(TEXT);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Noise over a gradient, so that the image stream does not compress to nothing
+     */
+    private static BufferedImage image(Random random) {
+        BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int noise = random.nextInt(32);
+                image.setRGB(x, y, ((x * 255 / image.getWidth()) << 16) | ((y * 255 / image.getHeight()) << 8) | (noise + 96));
+            }
+        }
+        return image;
+    }
+
+    private static synchronized byte[] fontFile() throws IOException {
+        if (fontFile == null) {
+            try (InputStream input = BaseFont.class.getClassLoader().getResourceAsStream(EMBEDDED_FONT)) {
+                if (input == null) {
+                    throw new IOException(EMBEDDED_FONT + " not found");
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                input.transferTo(bytes);
+                fontFile = bytes.toByteArray();
+            }
+        }
+        return fontFile;
+    }
+
+    /**
+     * Sets the /Rotate entry of the pages
+     */
+    private static byte[] rotate(byte[] pdf, Random random) throws DocumentException, IOException {
+        PdfReader reader = new PdfReader(pdf);
+        for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+            int rotation = ROTATIONS[random.nextInt(ROTATIONS.length)];
+            if (rotation != 0) {
+                reader.getPageN(page).put(PdfName.ROTATE, new PdfNumber(rotation));
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(pdf.length);
+        new PdfStamper(reader, output).close();
+        reader.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Appends an incremental update changing the first page and the document information, as an editor would
+     */
+    private static byte[] appendUpdate(byte[] pdf, int update) throws DocumentException, IOException {
+        PdfReader reader = new PdfReader(pdf);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(pdf.length + 4096);
+        PdfStamper stamper = new PdfStamper(reader, output, '\0', true);
+        PdfContentByte canvas = stamper.getOverContent(1);
+        canvas.beginText();
+        canvas.setFontAndSize(BaseFont.createFont(), 8);
+        canvas.setTextMatrix(20, 20);
+        canvas.showText("Revision " + update);
+        canvas.endText();
+        HashMap<String, String> info = new HashMap<>(reader.getInfo());
+        info.put("Producer", "Synthetic editor, revision " + update);
+        stamper.setMoreInfo(info);
+        stamper.close();
+        reader.close();
+        return output.toByteArray();
+    }
+}